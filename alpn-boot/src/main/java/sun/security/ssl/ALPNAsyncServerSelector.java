@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import javax.net.ssl.SSLException;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>A server provider that selects the application protocol asynchronously.</p>
+ * <p>With {@link javax.net.ssl.SSLEngine}, the ClientHello is processed by a
+ * delegated task, returned by {@code getDelegatedTask()} when the engine
+ * reports {@code NEED_TASK}. For server providers that implement this
+ * interface, that task calls {@link #selectAsync(List)} and then
+ * <em>blocks</em> until the selection completes, before producing the
+ * ServerHello: the handshake is not suspended. Applications must therefore
+ * run the delegated tasks on an executor to keep their I/O threads free;
+ * a delegated task run inline blocks the I/O thread, as does an
+ * {@link javax.net.ssl.SSLSocket} handshake.</p>
+ * <p>The task blocks at most for the number of milliseconds given by the
+ * {@code org.eclipse.jetty.alpn.selectTimeout} system property (default
+ * 1000), after which the selection is cancelled and the handshake fails
+ * with a {@code no_application_protocol} alert, as it does when the
+ * selection completes exceptionally.</p>
+ */
+public interface ALPNAsyncServerSelector extends ALPN.ServerProvider
+{
+    /**
+     * <p>Callback invoked to let the application select a protocol
+     * among the client ones.</p>
+     *
+     * @param protocols the protocols sent by the client
+     * @return a stage completed with the protocol selected by the server,
+     * or with null to not send the ALPN extension to the client
+     */
+    CompletionStage<String> selectAsync(List<String> protocols);
+
+    /**
+     * <p>Waits, without timeout, for the selection returned by {@link #selectAsync(List)}.</p>
+     */
+    @Override
+    default String select(List<String> protocols) throws SSLException
+    {
+        try
+        {
+            return selectAsync(protocols).toCompletableFuture().get();
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+            throw new SSLException(x);
+        }
+        catch (ExecutionException x)
+        {
+            throw new SSLException(x.getCause());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLProtocolException;
+
+import org.eclipse.jetty.alpn.ALPN;
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>Caches of encoded {@link ALPNExtension}s.</p>
+ * <p>{@code ALPNExtension}s are immutable, so the extension that the server
+ * sends for a given protocol is encoded once and then shared by all the
+ * handshakes that select that protocol.</p>
+ * <p>Similarly, the extension that the client offers is shared by all the
+ * handshakes whose client provider returns equal protocols; the cache keeps
+ * copies of the lists, so applications may modify them in place.
+ * Client providers that implement {@link ALPNConstantClientProvider} are
+ * asked for their protocols only once per provider instance; they are
+ * referenced weakly, so that the cache does not retain them nor what
+ * they reference.</p>
+ * <p>The caches are bounded by the {@code org.eclipse.jetty.alpn.cacheSize}
+ * system property (default 64 entries per cache); when a cache is full,
+ * extensions are encoded for each handshake.</p>
+ */
+public final class ALPNCache
+{
+    private static final int maxSize = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.cacheSize", 64));
+
+    private static final ConcurrentMap<String, ALPNExtension> serverExtensions = new ConcurrentHashMap<>();
+    private static final LongAdder serverHits = new LongAdder();
+    private static final LongAdder serverMisses = new LongAdder();
+
+    private static final ConcurrentMap<List<String>, ALPNExtension> clientExtensions = new ConcurrentHashMap<>();
+    private static final WeakIdentityMap<ALPN.ClientProvider, ALPNExtension> constantExtensions = new WeakIdentityMap<>();
+    private static volatile ClientOffer lastClientOffer;
+    private static final LongAdder clientHits = new LongAdder();
+    private static final LongAdder clientMisses = new LongAdder();
+
+    private ALPNCache()
+    {
+    }
+
+    /**
+     * @param protocol the protocol selected by the server
+     * @return the extension to send in the ServerHello
+     * @throws SSLProtocolException if the protocol name is too long
+     */
+    static ALPNExtension serverExtension(String protocol) throws SSLProtocolException
+    {
+        ALPNExtension extension = serverExtensions.get(protocol);
+        if (extension != null)
+        {
+            serverHits.increment();
+            return extension;
+        }
+        serverMisses.increment();
+        extension = new ALPNExtension(Collections.singletonList(protocol));
+        if (serverExtensions.size() < maxSize)
+        {
+            ALPNExtension existing = serverExtensions.putIfAbsent(protocol, extension);
+            if (existing != null)
+                extension = existing;
+        }
+        return extension;
+    }
+
+    /**
+     * @param offered the extension sent by the client
+     * @param index the index of the protocol selected by the server
+     * @return the extension to send in the ServerHello
+     * @throws SSLProtocolException if the protocol name is too long
+     */
+    static ALPNExtension serverExtension(ALPNExtension offered, int index) throws SSLProtocolException
+    {
+        // Only registered protocols are cached, to avoid
+        // decoding the protocol name to use it as a key.
+        ALPNProtocol protocol = offered.getALPNProtocol(index);
+        if (protocol != null)
+            return serverExtension(protocol.getName());
+        serverMisses.increment();
+        return new ALPNExtension(offered, index);
+    }
+
+    /**
+     * @param provider the client provider
+     * @return the extension to send in the ClientHello,
+     * or null if the provider does not return any protocol
+     * @throws SSLProtocolException if a protocol name is too long
+     */
+    static ALPNExtension clientExtension(ALPN.ClientProvider provider) throws SSLProtocolException
+    {
+        if (provider instanceof ALPNConstantClientProvider)
+        {
+            ALPNExtension extension = constantExtensions.get(provider);
+            if (extension != null)
+            {
+                clientHits.increment();
+                return extension;
+            }
+            extension = clientExtension(provider.protocols());
+            if (extension != null && constantExtensions.size() < maxSize)
+                constantExtensions.putIfAbsent(provider, extension);
+            return extension;
+        }
+        return clientExtension(provider.protocols());
+    }
+
+    private static ALPNExtension clientExtension(List<String> protocols) throws SSLProtocolException
+    {
+        if (protocols == null || protocols.isEmpty())
+            return null;
+
+        ClientOffer last = lastClientOffer;
+        if (last != null && last.protocols.equals(protocols))
+        {
+            clientHits.increment();
+            return last.extension;
+        }
+
+        ALPNExtension extension = clientExtensions.get(protocols);
+        if (extension != null)
+        {
+            clientHits.increment();
+            return extension;
+        }
+
+        clientMisses.increment();
+        extension = new ALPNExtension(protocols);
+        if (clientExtensions.size() < maxSize)
+        {
+            List<String> copy = new ArrayList<>(protocols);
+            ALPNExtension existing = clientExtensions.putIfAbsent(copy, extension);
+            if (existing != null)
+                extension = existing;
+            lastClientOffer = new ClientOffer(copy, extension);
+        }
+        return extension;
+    }
+
+    /**
+     * @return the number of times a ServerHello extension was found in the cache
+     */
+    public static long getServerHits()
+    {
+        return serverHits.sum();
+    }
+
+    /**
+     * @return the number of times a ServerHello extension had to be encoded
+     */
+    public static long getServerMisses()
+    {
+        return serverMisses.sum();
+    }
+
+    /**
+     * @return the number of times a ClientHello extension was found in the cache
+     */
+    public static long getClientHits()
+    {
+        return clientHits.sum();
+    }
+
+    /**
+     * @return the number of times a ClientHello extension had to be encoded
+     */
+    public static long getClientMisses()
+    {
+        return clientMisses.sum();
+    }
+
+    /**
+     * <p>Clears the caches, but not the statistics.</p>
+     */
+    public static void clear()
+    {
+        serverExtensions.clear();
+        clientExtensions.clear();
+        constantExtensions.clear();
+        lastClientOffer = null;
+    }
+
+    private static class ClientOffer
+    {
+        private final List<String> protocols;
+        private final ALPNExtension extension;
+
+        private ClientOffer(List<String> protocols, ALPNExtension extension)
+        {
+            this.protocols = protocols;
+            this.extension = extension;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>A client provider whose {@link #protocols()} always returns the same
+ * protocols.</p>
+ * <p>The ALPN extension offered by a client provider that implements this
+ * interface is encoded on the first handshake that uses the provider, and
+ * then reused: {@link #protocols()} is not called again for that provider
+ * instance.</p>
+ */
+public interface ALPNConstantClientProvider extends ALPN.ClientProvider
+{
+}
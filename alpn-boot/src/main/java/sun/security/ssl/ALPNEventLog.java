@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>An {@link ALPNEventSink} that records events in a preallocated
+ * ring buffer, to be drained later by another thread.</p>
+ * <p>Recording an event does not allocate nor lock nor wait: the event
+ * takes the next sequence number, and its writer claims the slot of that
+ * sequence exclusively, writes the event and publishes it. The drain
+ * claims each published slot the same way while it reads the event, so
+ * an event is never read while it is written.</p>
+ * <p>Events are lost, rather than waited for, when:</p>
+ * <ul>
+ * <li>newer events overwrote them before they were drained, because
+ * the buffer was full;</li>
+ * <li>their slot was claimed by another writer or by the drain when
+ * they were recorded;</li>
+ * <li>they were still being written when they were drained.</li>
+ * </ul>
+ * <p>Each recorded event is either passed to a drain or counted by
+ * {@link #getLost()}, once, so that after a drain that follows the last
+ * recorded event, the events drained plus the events lost are the events
+ * recorded.</p>
+ * <p>The buffer refers to the connections of the events until they are
+ * drained or overwritten, so its capacity bounds the connections it retains.</p>
+ */
+public class ALPNEventLog implements ALPNEventSink
+{
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    // For each slot, 1 + the sequence of the event published in it, or
+    // -(1 + the sequence) while the slot is claimed by the writer of the
+    // event or by the drain, or 0 if no event was recorded in it yet.
+    private final AtomicLongArray states;
+    private final long[] times;
+    private final ALPNEvents.Type[] types;
+    private final boolean[] clients;
+    private final Object[] connections;
+    private final Object[] details;
+    private long drained;
+    private long lost;
+
+    /**
+     * @param capacity the max number of events retained, rounded up to a power of 2
+     */
+    public ALPNEventLog(int capacity)
+    {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        states = new AtomicLongArray(size);
+        times = new long[size];
+        types = new ALPNEvents.Type[size];
+        clients = new boolean[size];
+        connections = new Object[size];
+        details = new Object[size];
+    }
+
+    @Override
+    public void onEvent(long nanoTime, ALPNEvents.Type type, boolean client, Object connection, Object detail)
+    {
+        long sequence = next.getAndIncrement();
+        int slot = (int)(sequence & mask);
+        while (true)
+        {
+            long state = states.get(slot);
+            // Claimed by another writer or by the drain, or holding a newer event:
+            // this event is lost, and is counted as such by the drain.
+            if (state < 0 || state > sequence)
+                return;
+            // The successful CAS has acquire semantics, so the writes
+            // below cannot be reordered before the claim.
+            if (states.compareAndSet(slot, state, -(sequence + 1)))
+                break;
+        }
+        times[slot] = nanoTime;
+        types[slot] = type;
+        clients[slot] = client;
+        connections[slot] = connection;
+        details[slot] = detail;
+        // Release store: the writes above are visible to the drain that claims the slot.
+        states.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * <p>Passes the events recorded since the last drain to the given sink,
+     * oldest first, for example to an {@link ALPNEventRenderer}.</p>
+     *
+     * @param sink the sink to pass the events to
+     * @return the number of events passed to the sink
+     */
+    public synchronized int drain(ALPNEventSink sink)
+    {
+        long end = next.get();
+        // The events before the last capacity events were overwritten.
+        long start = Math.max(drained, end - (mask + 1));
+        lost += start - drained;
+        int count = 0;
+        for (long sequence = start; sequence < end; ++sequence)
+        {
+            int slot = (int)(sequence & mask);
+            // Claim the slot only if it holds this event: otherwise the event is
+            // still being written, was dropped, or was already overwritten.
+            if (!states.compareAndSet(slot, sequence + 1, -(sequence + 1)))
+            {
+                ++lost;
+                continue;
+            }
+            long nanoTime = times[slot];
+            ALPNEvents.Type type = types[slot];
+            boolean client = clients[slot];
+            Object connection = connections[slot];
+            Object detail = details[slot];
+            // Do not retain the drained connections.
+            connections[slot] = null;
+            details[slot] = null;
+            // Release the slot, still holding this event so that older writers cannot claim it.
+            states.lazySet(slot, sequence + 1);
+            sink.onEvent(nanoTime, type, client, connection, detail);
+            ++count;
+        }
+        drained = end;
+        return count;
+    }
+
+    /**
+     * @return the number of events lost before they were drained
+     */
+    public synchronized long getLost()
+    {
+        return lost;
+    }
+}
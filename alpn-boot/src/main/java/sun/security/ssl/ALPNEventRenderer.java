@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.io.PrintStream;
+
+/**
+ * <p>Renders ALPN events as lines of text, one per event.</p>
+ * <p>This is the format of the {@link org.eclipse.jetty.alpn.ALPN#debug}
+ * output; it can also render the events drained from an {@link ALPNEventLog}.</p>
+ */
+public class ALPNEventRenderer implements ALPNEventSink
+{
+    private final PrintStream output;
+
+    /**
+     * <p>Creates a renderer that prints the events to the {@code System.err}
+     * of the time of each event, so that it follows {@link System#setErr(PrintStream)}.</p>
+     */
+    public ALPNEventRenderer()
+    {
+        this(null);
+    }
+
+    /**
+     * @param output the stream to print the events to, or null to print them to {@code System.err}
+     */
+    public ALPNEventRenderer(PrintStream output)
+    {
+        this.output = output;
+    }
+
+    @Override
+    public void onEvent(long nanoTime, ALPNEvents.Type type, boolean client, Object connection, Object detail)
+    {
+        StringBuilder builder = new StringBuilder();
+        render(builder, type, client, connection, detail);
+        PrintStream output = this.output;
+        if (output == null)
+            output = System.err;
+        output.println(builder);
+    }
+
+    /**
+     * @param builder the builder to append the text of the event to
+     * @param type the type of the event
+     * @param client whether the event comes from the client side of the handshake
+     * @param connection the {@code SSLEngine} or {@code SSLSocket} of the handshake
+     * @param detail the detail of the event, or null
+     */
+    public static void render(StringBuilder builder, ALPNEvents.Type type, boolean client, Object connection, Object detail)
+    {
+        builder.append(client ? "[C] " : "[S] ");
+        switch (type)
+        {
+            case OFFERED:
+                if (detail == null)
+                    builder.append("ALPN not offered, no protocols");
+                else
+                    builder.append("ALPN protocols ").append(((ALPNExtension)detail).getProtocols()).append(client ? " offered" : " received from client");
+                break;
+            case SELECTED:
+                if (detail == null)
+                    builder.append("ALPN protocol not selected, not sent");
+                else
+                    builder.append("ALPN protocol '").append(protocol(detail)).append(client ? "' selected by server" : "' selected");
+                break;
+            case UNSUPPORTED:
+                builder.append(client ? "ALPN not supported by server" : "ALPN not received");
+                break;
+            case PROVIDER_MISSING:
+                builder.append(client ? "ALPN client provider not present" : "ALPN server provider not present");
+                break;
+            case FAILURE:
+                builder.append("ALPN negotiation failed (").append(detail).append(")");
+                break;
+            default:
+                throw new IllegalArgumentException(String.valueOf(type));
+        }
+        builder.append(" for ").append(connection);
+    }
+
+    private static String protocol(Object detail)
+    {
+        if (detail instanceof ALPNExtension)
+            return ((ALPNExtension)detail).getProtocol(0);
+        return String.valueOf(detail);
+    }
+}
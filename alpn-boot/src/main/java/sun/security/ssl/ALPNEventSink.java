@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+/**
+ * <p>Receives the ALPN events of the handshakes, see {@link ALPNEvents}.</p>
+ * <p>Sinks are called by the handshaking thread, and must not block;
+ * the connection and the detail should be kept as references, and
+ * only turned into text later, for example by {@link ALPNEventRenderer}.</p>
+ */
+public interface ALPNEventSink
+{
+    /**
+     * @param nanoTime the {@link System#nanoTime()} of the event
+     * @param type the type of the event
+     * @param client whether the event comes from the client side of the handshake
+     * @param connection the {@code SSLEngine} or {@code SSLSocket} of the handshake
+     * @param detail the detail of the event, see {@link ALPNEvents.Type}, or null
+     */
+    void onEvent(long nanoTime, ALPNEvents.Type type, boolean client, Object connection, Object detail);
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>The ALPN events of the handshakes, such as the protocols offered
+ * and the protocol selected, reported to a pluggable {@link ALPNEventSink}.</p>
+ * <p>Events are only created for the connections that are sampled, and only
+ * when a sink is set or {@link ALPN#debug} is enabled; debug output is
+ * rendered to the current {@code System.err} by {@link ALPNEventRenderer}. Events do not
+ * turn the connection nor the detail into text, so a sink such as
+ * {@link ALPNEventLog} records them without allocating.</p>
+ */
+public final class ALPNEvents
+{
+    private static final ALPNEventSink debugSink = new ALPNEventRenderer();
+    private static volatile ALPNEventSink sink;
+    private static volatile int samplingRate = 1;
+
+    private ALPNEvents()
+    {
+    }
+
+    /**
+     * @return the sink of the events, or null
+     */
+    public static ALPNEventSink getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * @param sink the sink of the events, or null to only report them when {@link ALPN#debug} is enabled
+     */
+    public static void setSink(ALPNEventSink sink)
+    {
+        ALPNEvents.sink = sink;
+    }
+
+    /**
+     * @return the events of one connection in how many are reported
+     */
+    public static int getSamplingRate()
+    {
+        return samplingRate;
+    }
+
+    /**
+     * <p>Reports the events of one connection in {@code rate}; the events
+     * of a sampled connection are all reported.</p>
+     *
+     * @param rate the events of one connection in how many are reported, 1 to report all
+     */
+    public static void setSamplingRate(int rate)
+    {
+        if (rate < 1)
+            throw new IllegalArgumentException("Invalid sampling rate " + rate);
+        samplingRate = rate;
+    }
+
+    static void event(Type type, boolean client, Object connection, Object detail)
+    {
+        ALPNEventSink sink = ALPNEvents.sink;
+        boolean debug = ALPN.debug;
+        if (sink == null && !debug)
+            return;
+        int rate = samplingRate;
+        // The identity hash code does not change, so a connection is either sampled or not.
+        if (rate > 1 && (System.identityHashCode(connection) & 0x7FFFFFFF) % rate != 0)
+            return;
+        long nanoTime = System.nanoTime();
+        if (sink != null)
+            sink.onEvent(nanoTime, type, client, connection, detail);
+        if (debug)
+            debugSink.onEvent(nanoTime, type, client, connection, detail);
+    }
+
+    /**
+     * <p>The types of ALPN events, and their detail.</p>
+     */
+    public enum Type
+    {
+        /**
+         * <p>Protocols were offered by the client, the detail is the {@link ALPNExtension},
+         * or null if the client provider did not return any protocol.</p>
+         */
+        OFFERED,
+        /**
+         * <p>A protocol was selected by the server, the detail is the name of the protocol
+         * or the {@link ALPNExtension} sent by the server, or null if no protocol was selected.</p>
+         */
+        SELECTED,
+        /**
+         * <p>ALPN was not sent by the peer, the detail is null.</p>
+         */
+        UNSUPPORTED,
+        /**
+         * <p>No ALPN provider was present for the connection, the detail is null.</p>
+         */
+        PROVIDER_MISSING,
+        /**
+         * <p>The negotiation failed, the detail is the failure.</p>
+         */
+        FAILURE
+    }
+}
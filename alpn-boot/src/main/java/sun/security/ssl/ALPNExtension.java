@@ -17,66 +17,203 @@
 
 package sun.security.ssl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.security.AccessController;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 
 import javax.net.ssl.SSLProtocolException;
 
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>The ALPN TLS extension.</p>
+ * <p>The extension keeps the wire bytes of the {@code ProtocolNameList}
+ * together with the offsets of each protocol name, so that received
+ * extensions are never re-encoded, and protocol names are decoded into
+ * {@code String}s only when they are asked for.</p>
+ * <p>Protocols registered in {@link ALPNProtocol} are decoded into their
+ * canonical {@code String} without allocation.</p>
+ * <p>Received extensions with more protocols than the
+ * {@code org.eclipse.jetty.alpn.maxProtocols} system property (default 128),
+ * or with empty protocol names, are rejected with a {@code decode_error}
+ * alert.</p>
+ */
 public class ALPNExtension extends HelloExtension
 {
     private static final int ID = ExtensionType.EXT_ALPN.id;
+    // The max number of protocols accepted in a received extension.
+    private static final int maxProtocols = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.maxProtocols", 128));
 
-    private final List<String> protocols = new ArrayList<>();
+    // The extension_data: the 2 bytes length of the ProtocolNameList
+    // followed by the length-prefixed protocol names.
     private final byte[] content;
+    // The offset in content of the length byte of each protocol name.
+    private final int[] offsets;
+    private final List<String> protocols = new Protocols();
 
     public ALPNExtension(List<String> protocols) throws SSLProtocolException
     {
         super(ExtensionType.get(ID));
-        this.protocols.addAll(protocols);
-        content = init();
+        content = encode(protocols);
+        offsets = offsets(content, Integer.MAX_VALUE, true);
+    }
+
+    // Creates the extension that selects the protocol at the given index of the offered extension.
+    ALPNExtension(ALPNExtension offered, int index)
+    {
+        super(ExtensionType.get(ID));
+        int offset = offered.offsets[index];
+        int length = 1 + (offered.content[offset] & 0xFF);
+        content = new byte[2 + length];
+        content[0] = (byte)((length & 0xFF00) >> 8);
+        content[1] = (byte)(length & 0xFF);
+        System.arraycopy(offered.content, offset, content, 2, length);
+        offsets = new int[]{2};
     }
 
     public ALPNExtension(HandshakeInStream input, int length) throws IOException
     {
         super(ExtensionType.get(ID));
-        length = input.getInt16();
-        while (length > 0)
+        if (length < 2)
+            throw new SSLAlertException(Alerts.alert_decode_error, "Invalid ALPN extension length: " + length);
+        content = new byte[length];
+        input.read(content, 0, length);
+        offsets = offsets(content, maxProtocols, false);
+    }
+
+    private static byte[] encode(List<String> protocols) throws SSLProtocolException
+    {
+        byte[][] names = new byte[protocols.size()][];
+        int length = 0;
+        for (int i = 0; i < names.length; ++i)
+        {
+            String protocol = protocols.get(i);
+            ALPNProtocol known = ALPNProtocol.forName(protocol);
+            byte[] encoded;
+            if (known != null)
+            {
+                encoded = known.encoded();
+            }
+            else
+            {
+                byte[] protocolBytes = protocol.getBytes(StandardCharsets.UTF_8);
+                if (protocolBytes.length > 255)
+                    throw new SSLProtocolException("Protocol name too long: " + protocol);
+                encoded = new byte[1 + protocolBytes.length];
+                encoded[0] = (byte)protocolBytes.length;
+                System.arraycopy(protocolBytes, 0, encoded, 1, protocolBytes.length);
+            }
+            names[i] = encoded;
+            length += encoded.length;
+        }
+        if (length > 0xFFFF - 2)
+            throw new SSLProtocolException("Protocol list too long: " + length);
+        byte[] result = new byte[2 + length];
+        result[0] = (byte)((length & 0xFF00) >> 8);
+        result[1] = (byte)(length & 0xFF);
+        int offset = 2;
+        for (byte[] name : names)
         {
-            byte[] protocolBytes = input.getBytes8();
-            protocols.add(new String(protocolBytes, StandardCharsets.UTF_8));
-            length -= 1 + protocolBytes.length;
+            System.arraycopy(name, 0, result, offset, name.length);
+            offset += name.length;
         }
-        content = init();
+        return result;
     }
 
-    private byte[] init() throws SSLProtocolException
+    private static int[] offsets(byte[] content, int maxCount, boolean allowEmpty) throws SSLProtocolException
     {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        for (String protocol : protocols)
+        int listLength = ((content[0] & 0xFF) << 8) | (content[1] & 0xFF);
+        if (listLength != content.length - 2)
+            throw new SSLAlertException(Alerts.alert_decode_error, "Invalid ALPN protocol list length: " + listLength);
+        int count = 0;
+        int offset = 2;
+        while (offset < content.length)
         {
-            byte[] protocolBytes = protocol.getBytes(StandardCharsets.UTF_8);
-            int length = protocolBytes.length;
-            if (length > 255)
-                throw new SSLProtocolException("Protocol name too long: " + protocol);
-            bytes.write(length);
-            bytes.write(protocolBytes, 0, length);
+            int nameLength = content[offset] & 0xFF;
+            if (nameLength == 0 && !allowEmpty)
+                throw new SSLAlertException(Alerts.alert_decode_error, "Empty ALPN protocol name");
+            offset += 1 + nameLength;
+            if (++count > maxCount)
+                throw new SSLAlertException(Alerts.alert_decode_error, "Too many ALPN protocols, max " + maxCount);
+        }
+        if (offset != content.length)
+            throw new SSLAlertException(Alerts.alert_decode_error, "Invalid ALPN protocol name length");
+        int[] result = new int[count];
+        offset = 2;
+        for (int i = 0; i < count; ++i)
+        {
+            result[i] = offset;
+            offset += 1 + (content[offset] & 0xFF);
         }
-        byte[] protocolsBytes = bytes.toByteArray();
-        byte[] result = new byte[2 + protocolsBytes.length];
-        result[0] = (byte)((protocolsBytes.length & 0xFF00) >> 8);
-        result[1] = (byte)(protocolsBytes.length & 0xFF);
-        System.arraycopy(protocolsBytes, 0, result, 2, protocolsBytes.length);
         return result;
     }
 
+    /**
+     * @return the protocols, decoded lazily as they are accessed
+     */
     public List<String> getProtocols()
     {
         return protocols;
     }
 
+    /**
+     * @return the number of protocols in this extension
+     */
+    public int size()
+    {
+        return offsets.length;
+    }
+
+    /**
+     * @param index the index of the protocol
+     * @return the protocol at the given index
+     */
+    public String getProtocol(int index)
+    {
+        return protocols.get(index);
+    }
+
+    /**
+     * @param index the index of the protocol
+     * @return the registered protocol at the given index,
+     * or null if the protocol at the given index is not registered
+     */
+    public ALPNProtocol getALPNProtocol(int index)
+    {
+        int offset = offsets[index];
+        return ALPNProtocol.lookup(content, offset + 1, content[offset] & 0xFF);
+    }
+
+    /**
+     * @param protocol the registered protocol to search for
+     * @return the index of the given protocol in this extension, or -1
+     */
+    public int indexOf(ALPNProtocol protocol)
+    {
+        for (int i = 0; i < offsets.length; ++i)
+        {
+            int offset = offsets[i];
+            if (protocol.matches(content, offset + 1, content[offset] & 0xFF))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param index the index of the protocol
+     * @return a read-only view of the UTF-8 bytes of the protocol at the given index
+     */
+    public ByteBuffer getProtocolBytes(int index)
+    {
+        int offset = offsets[index];
+        return ByteBuffer.wrap(content, offset + 1, content[offset] & 0xFF).slice().asReadOnlyBuffer();
+    }
+
     @Override
     int length()
     {
@@ -96,4 +233,39 @@ public class ALPNExtension extends HelloExtension
     {
         return String.format("Extension %s, protocols: %s", type, protocols);
     }
+
+    private class Protocols extends AbstractList<String> implements RandomAccess
+    {
+        private volatile String[] decoded;
+
+        @Override
+        public String get(int index)
+        {
+            String[] names = decoded;
+            if (names == null)
+                decoded = names = new String[offsets.length];
+            String name = names[index];
+            if (name == null)
+            {
+                ALPNProtocol known = getALPNProtocol(index);
+                if (known != null)
+                {
+                    name = known.getName();
+                }
+                else
+                {
+                    int offset = offsets[index];
+                    name = new String(content, offset + 1, content[offset] & 0xFF, StandardCharsets.UTF_8);
+                }
+                names[index] = name;
+            }
+            return name;
+        }
+
+        @Override
+        public int size()
+        {
+            return offsets.length;
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>A process-wide registry of known ALPN protocols.</p>
+ * <p>Each registered protocol has a stable integer id, a canonical
+ * {@code String} name and its pre-encoded wire bytes, so that decoding
+ * a known protocol name from the wire is a table lookup rather than
+ * an allocation.</p>
+ * <p>Protocols that are not registered are still supported, but are
+ * decoded into new {@code String}s every time.</p>
+ */
+public final class ALPNProtocol
+{
+    private static final Object lock = new Object();
+    private static volatile Registry registry = new Registry();
+
+    public static final ALPNProtocol HTTP_1_0 = register("http/1.0");
+    public static final ALPNProtocol HTTP_1_1 = register("http/1.1");
+    public static final ALPNProtocol SPDY_1 = register("spdy/1");
+    public static final ALPNProtocol SPDY_2 = register("spdy/2");
+    public static final ALPNProtocol SPDY_3 = register("spdy/3");
+    public static final ALPNProtocol SPDY_3_1 = register("spdy/3.1");
+    public static final ALPNProtocol H2 = register("h2");
+    public static final ALPNProtocol H2C = register("h2c");
+
+    /**
+     * <p>Registers the given protocol, if not already registered.</p>
+     *
+     * @param name the protocol name
+     * @return the registered protocol
+     * @throws IllegalArgumentException if the protocol name is empty
+     * or longer than 255 bytes
+     */
+    public static ALPNProtocol register(String name)
+    {
+        synchronized (lock)
+        {
+            Registry current = registry;
+            ALPNProtocol protocol = current.byName.get(name);
+            if (protocol != null)
+                return protocol;
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length == 0 || bytes.length > 255)
+                throw new IllegalArgumentException("Invalid protocol name: " + name);
+            protocol = new ALPNProtocol(current.byId.length, name, bytes);
+            registry = current.add(protocol);
+            return protocol;
+        }
+    }
+
+    /**
+     * @param name the protocol name
+     * @return the registered protocol with the given name, or null
+     */
+    public static ALPNProtocol forName(String name)
+    {
+        return registry.byName.get(name);
+    }
+
+    /**
+     * @param id the protocol id
+     * @return the registered protocol with the given id, or null
+     */
+    public static ALPNProtocol forId(int id)
+    {
+        ALPNProtocol[] byId = registry.byId;
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * @param bytes the bytes containing the protocol name
+     * @param offset the offset of the protocol name
+     * @param length the length of the protocol name
+     * @return the registered protocol whose name matches the given bytes, or null
+     */
+    public static ALPNProtocol lookup(byte[] bytes, int offset, int length)
+    {
+        ALPNProtocol[][] byLength = registry.byLength;
+        if (length >= byLength.length)
+            return null;
+        ALPNProtocol[] candidates = byLength[length];
+        if (candidates == null)
+            return null;
+        for (ALPNProtocol candidate : candidates)
+        {
+            if (candidate.matches(bytes, offset, length))
+                return candidate;
+        }
+        return null;
+    }
+
+    private final int id;
+    private final String name;
+    // The length byte followed by the UTF-8 bytes of the name.
+    private final byte[] encoded;
+
+    private ALPNProtocol(int id, String name, byte[] bytes)
+    {
+        this.id = id;
+        this.name = name;
+        this.encoded = new byte[1 + bytes.length];
+        this.encoded[0] = (byte)bytes.length;
+        System.arraycopy(bytes, 0, this.encoded, 1, bytes.length);
+    }
+
+    /**
+     * @return the stable id of this protocol
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the canonical name of this protocol
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the length of the UTF-8 bytes of the name
+     */
+    int nameLength()
+    {
+        return encoded.length - 1;
+    }
+
+    /**
+     * @return the wire encoding of this protocol, that must not be modified
+     */
+    byte[] encoded()
+    {
+        return encoded;
+    }
+
+    boolean matches(byte[] bytes, int offset, int length)
+    {
+        if (length != encoded.length - 1)
+            return false;
+        for (int i = 0; i < length; ++i)
+        {
+            if (bytes[offset + i] != encoded[1 + i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%d", name, id);
+    }
+
+    // Registries are immutable, and replaced as a whole when a protocol is registered.
+    private static class Registry
+    {
+        private final ALPNProtocol[] byId;
+        private final ALPNProtocol[][] byLength;
+        private final Map<String, ALPNProtocol> byName;
+
+        private Registry()
+        {
+            this(new ALPNProtocol[0], new ALPNProtocol[1][], new HashMap<>());
+        }
+
+        private Registry(ALPNProtocol[] byId, ALPNProtocol[][] byLength, Map<String, ALPNProtocol> byName)
+        {
+            this.byId = byId;
+            this.byLength = byLength;
+            this.byName = byName;
+        }
+
+        private Registry add(ALPNProtocol protocol)
+        {
+            ALPNProtocol[] newById = Arrays.copyOf(byId, byId.length + 1);
+            newById[protocol.id] = protocol;
+
+            int length = protocol.nameLength();
+            ALPNProtocol[][] newByLength = Arrays.copyOf(byLength, Math.max(byLength.length, length + 1));
+            ALPNProtocol[] candidates = newByLength[length];
+            if (candidates == null)
+            {
+                candidates = new ALPNProtocol[]{protocol};
+            }
+            else
+            {
+                candidates = Arrays.copyOf(candidates, candidates.length + 1);
+                candidates[candidates.length - 1] = protocol;
+            }
+            newByLength[length] = candidates;
+
+            Map<String, ALPNProtocol> newByName = new HashMap<>(byName);
+            newByName.put(protocol.name, protocol);
+
+            return new Registry(newById, newByLength, newByName);
+        }
+    }
+}
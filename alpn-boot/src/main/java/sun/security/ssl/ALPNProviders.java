@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>Attaches ALPN providers directly to a handshake, as an alternative
+ * to {@code ALPN.put(...)} and {@code ALPN.remove(...)}.</p>
+ * <p>The provider passed to {@link #beginHandshake(SSLEngine, ALPN.Provider)}
+ * or {@link #startHandshake(SSLSocket, ALPN.Provider)} is handed to the
+ * initial handshake begun by that call, and kept by the handshaker until the
+ * handshake is complete: no shared map is involved, and there is nothing
+ * to remove afterwards.</p>
+ * <p>These methods must be called to begin the initial handshake, before
+ * any data is read or written, since otherwise the handshake has already
+ * started without the provider. Handshakes without an attached provider
+ * fall back to the provider registered via {@code ALPN.put(...)}.</p>
+ * <p>Providers may also be registered per connection via
+ * {@link #put(SSLEngine, ALPN.Provider)}, which, unlike {@code ALPN.put(...)},
+ * holds connections weakly: the entries of connections that are garbage
+ * collected without being removed, for example because their handshake
+ * failed, are reclaimed on the next access to the registry. The entries of
+ * both registries are removed automatically when the initial handshake of
+ * their connection completes.</p>
+ * <p>The registry holds providers strongly, so a provider that references
+ * its connection, directly or not, keeps the connection reachable: its entry
+ * is then only removed when the initial handshake completes, or by
+ * {@link #remove(SSLEngine)}. Such providers should be attached with
+ * {@link #beginHandshake(SSLEngine, ALPN.Provider)}, or removed explicitly
+ * when the handshake fails.</p>
+ * <p>Handshakes without a provider attached or registered for their
+ * connection fall back to the default provider of their
+ * {@link SSLContext}, if any, so that applications that use the same
+ * provider for every connection need no per-connection registration.</p>
+ */
+public final class ALPNProviders
+{
+    private static final ThreadLocal<ALPN.Provider> attached = new ThreadLocal<>();
+    private static final Object lock = new Object();
+    private static volatile DefaultProvider[] defaults = new DefaultProvider[0];
+    private static final WeakIdentityMap<Object, ALPN.Provider> providers = new WeakIdentityMap<>();
+    private static final LongAdder purged = new LongAdder();
+
+    private ALPNProviders()
+    {
+    }
+
+    /**
+     * <p>Begins the initial handshake of the given engine, attaching the given provider to it.</p>
+     *
+     * @param engine the engine to begin the handshake for
+     * @param provider the provider for the handshake
+     * @throws SSLException if the handshake cannot be begun
+     * @see SSLEngine#beginHandshake()
+     */
+    public static void beginHandshake(SSLEngine engine, ALPN.Provider provider) throws SSLException
+    {
+        attached.set(provider);
+        try
+        {
+            engine.beginHandshake();
+        }
+        finally
+        {
+            attached.remove();
+        }
+    }
+
+    /**
+     * <p>Starts the initial handshake of the given socket, attaching the given provider to it.</p>
+     *
+     * @param socket the socket to start the handshake for
+     * @param provider the provider for the handshake
+     * @throws IOException if the handshake fails
+     * @see SSLSocket#startHandshake()
+     */
+    public static void startHandshake(SSLSocket socket, ALPN.Provider provider) throws IOException
+    {
+        attached.set(provider);
+        try
+        {
+            socket.startHandshake();
+        }
+        finally
+        {
+            attached.remove();
+        }
+    }
+
+    /**
+     * <p>Registers the given provider for the given engine.</p>
+     * <p>The provider is held strongly: if it references the engine,
+     * the entry is not reclaimed until it is removed.</p>
+     *
+     * @param engine the engine
+     * @param provider the provider for the engine
+     * @see #remove(SSLEngine)
+     */
+    public static void put(SSLEngine engine, ALPN.Provider provider)
+    {
+        providers.put(engine, provider);
+    }
+
+    /**
+     * <p>Registers the given provider for the given socket.</p>
+     * <p>The provider is held strongly: if it references the socket,
+     * the entry is not reclaimed until it is removed.</p>
+     *
+     * @param socket the socket
+     * @param provider the provider for the socket
+     * @see #remove(SSLSocket)
+     */
+    public static void put(SSLSocket socket, ALPN.Provider provider)
+    {
+        providers.put(socket, provider);
+    }
+
+    /**
+     * @param engine the engine
+     * @return the provider registered for the given engine, or null
+     */
+    public static ALPN.Provider get(SSLEngine engine)
+    {
+        return providers.get(engine);
+    }
+
+    /**
+     * @param socket the socket
+     * @return the provider registered for the given socket, or null
+     */
+    public static ALPN.Provider get(SSLSocket socket)
+    {
+        return providers.get(socket);
+    }
+
+    /**
+     * @param engine the engine
+     * @return the provider that was registered for the given engine, or null
+     */
+    public static ALPN.Provider remove(SSLEngine engine)
+    {
+        return providers.remove(engine);
+    }
+
+    /**
+     * @param socket the socket
+     * @return the provider that was registered for the given socket, or null
+     */
+    public static ALPN.Provider remove(SSLSocket socket)
+    {
+        return providers.remove(socket);
+    }
+
+    /**
+     * @return the number of providers currently registered via {@code put(...)},
+     * including those of collected connections not yet reclaimed
+     */
+    public static int getRegisteredProviders()
+    {
+        return providers.size();
+    }
+
+    /**
+     * @return the number of registered providers reclaimed because their connection was collected
+     */
+    public static long getReclaimedProviders()
+    {
+        return providers.getReclaimed();
+    }
+
+    /**
+     * @return the number of registered providers removed because the initial handshake completed
+     */
+    public static long getPurgedProviders()
+    {
+        return purged.sum();
+    }
+
+    /**
+     * <p>Sets the server provider used by the server handshakes of the given
+     * context that have no provider of their own.</p>
+     *
+     * @param context the SSL context
+     * @param provider the default server provider, or null to remove it
+     */
+    public static void setDefaultServerProvider(SSLContext context, ALPN.ServerProvider provider)
+    {
+        setDefaultProvider(context.getServerSessionContext(), provider);
+    }
+
+    /**
+     * <p>Sets the client provider used by the client handshakes of the given
+     * context that have no provider of their own.</p>
+     *
+     * @param context the SSL context
+     * @param provider the default client provider, or null to remove it
+     */
+    public static void setDefaultClientProvider(SSLContext context, ALPN.ClientProvider provider)
+    {
+        setDefaultProvider(context.getClientSessionContext(), provider);
+    }
+
+    /**
+     * <p>Sets the provider used by the handshakes of the given session context
+     * that have no provider of their own.</p>
+     * <p>The server session context of an {@link SSLContext} selects its
+     * default server provider, and its client session context selects its
+     * default client provider. The session context is weakly referenced.</p>
+     *
+     * @param context the session context
+     * @param provider the default provider, or null to remove it
+     */
+    public static void setDefaultProvider(SSLSessionContext context, ALPN.Provider provider)
+    {
+        synchronized (lock)
+        {
+            List<DefaultProvider> result = new ArrayList<>();
+            for (DefaultProvider entry : defaults)
+            {
+                SSLSessionContext key = entry.get();
+                if (key != null && key != context)
+                    result.add(entry);
+            }
+            if (provider != null)
+                result.add(new DefaultProvider(context, provider));
+            defaults = result.toArray(new DefaultProvider[result.size()]);
+        }
+    }
+
+    /**
+     * @param context the session context
+     * @return the default provider of the given session context, or null
+     */
+    public static ALPN.Provider getDefaultProvider(SSLSessionContext context)
+    {
+        for (DefaultProvider entry : defaults)
+        {
+            if (entry.get() == context)
+                return entry.provider;
+        }
+        return null;
+    }
+
+    static ALPN.Provider lookup(SSLEngine engine)
+    {
+        ALPN.Provider provider = providers.get(engine);
+        return provider != null ? provider : ALPN.get(engine);
+    }
+
+    static ALPN.Provider lookup(SSLSocket socket)
+    {
+        ALPN.Provider provider = providers.get(socket);
+        return provider != null ? provider : ALPN.get(socket);
+    }
+
+    // Called when the initial handshake completes, since providers are not used afterwards.
+    static void purge(SSLEngine engine)
+    {
+        if (providers.remove(engine) != null | ALPN.remove(engine) != null)
+            purged.increment();
+    }
+
+    static void purge(SSLSocket socket)
+    {
+        if (providers.remove(socket) != null | ALPN.remove(socket) != null)
+            purged.increment();
+    }
+
+    /**
+     * @return the provider attached to the handshake being begun on this thread, or null
+     */
+    static ALPN.Provider take()
+    {
+        ALPN.Provider provider = attached.get();
+        if (provider != null)
+            attached.remove();
+        return provider;
+    }
+
+    // Contexts are few and rarely change, so the defaults are an immutable
+    // array that is scanned without locking and replaced as a whole.
+    private static class DefaultProvider extends WeakReference<SSLSessionContext>
+    {
+        private final ALPN.Provider provider;
+
+        private DefaultProvider(SSLSessionContext context, ALPN.Provider provider)
+        {
+            super(context);
+            this.provider = provider;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.util.List;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>A server provider that reuses the protocol negotiated by a session
+ * when that session is resumed.</p>
+ * <p>When a handshake resumes a session whose negotiated protocol
+ * (see {@link ALPNSessions}) is still offered by the client,
+ * {@link #resumed(String)} is called instead of {@link #select(List)},
+ * and that protocol is sent to the client.</p>
+ */
+public interface ALPNResumingServerProvider extends ALPN.ServerProvider
+{
+    /**
+     * <p>Callback invoked when a resumed session reuses its negotiated protocol.</p>
+     *
+     * @param protocol the protocol negotiated by the resumed session
+     */
+    void resumed(String protocol);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.util.List;
+
+import javax.net.ssl.SSLException;
+
+import org.eclipse.jetty.alpn.ALPN;
+
+/**
+ * <p>A server provider that selects the application protocol directly from
+ * the bytes of the ALPN extension sent by the client, without decoding the
+ * protocol names into {@code String}s.</p>
+ * <p>Server providers registered via {@code ALPN.put(...)} that implement
+ * this interface have {@link #select(ALPNExtension)} called instead of
+ * {@link #select(List)}.</p>
+ */
+public interface ALPNServerSelector extends ALPN.ServerProvider
+{
+    /**
+     * <p>Callback invoked to let the application select a protocol
+     * among the client ones.</p>
+     * <p>Implementations typically use {@link ALPNExtension#indexOf(ALPNProtocol)}
+     * or {@link ALPNExtension#getALPNProtocol(int)}, that do not allocate.</p>
+     *
+     * @param offered the ALPN extension sent by the client
+     * @return the index of the protocol selected by the server,
+     * or a negative value to not send the ALPN extension to the client
+     * @throws SSLException if the protocol negotiation failed
+     */
+    int select(ALPNExtension offered) throws SSLException;
+
+    @Override
+    default String select(List<String> protocols) throws SSLException
+    {
+        int index = select(new ALPNExtension(protocols));
+        return index < 0 ? null : protocols.get(index);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * <p>The application protocols negotiated by TLS sessions.</p>
+ * <p>The protocol negotiated via ALPN is recorded when the initial handshake
+ * that created the session completes, on both the client and the server,
+ * so that applications can read it from the {@link SSLSession} without
+ * keeping their own map, and so that servers can reuse it when the
+ * session is resumed (see {@link ALPNResumingServerProvider}).</p>
+ * <p>Sessions are weakly referenced, so recorded protocols do not outlive
+ * their session.</p>
+ */
+public final class ALPNSessions
+{
+    private static final WeakIdentityMap<SSLSession, String> protocols = new WeakIdentityMap<>();
+
+    private ALPNSessions()
+    {
+    }
+
+    /**
+     * @param session the TLS session
+     * @return the application protocol negotiated by the given session,
+     * or null if no protocol was negotiated
+     */
+    public static String getProtocol(SSLSession session)
+    {
+        return protocols.get(session);
+    }
+
+    static void setProtocol(SSLSession session, String protocol)
+    {
+        protocols.put(session, protocol);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>The number of TLS alerts sent and received, by level and description,
+ * counted without logging and without contention between handshakes.</p>
+ * <p>The counted alerts are:</p>
+ * <ul>
+ * <li>the alerts sent by the handshake; alerts that the engine or the socket
+ * send themselves, for example for record layer errors, are not counted;</li>
+ * <li>the warnings received during the handshake; warnings received
+ * afterwards, such as {@code close_notify}, are not counted;</li>
+ * <li>the fatal alerts received by the engine or the socket.</li>
+ * </ul>
+ * <p>Metrics exporters can poll {@link #snapshot()}, or read the attributes
+ * of the MBean registered with {@link #registerMBean()}.</p>
+ */
+public final class AlertStatistics
+{
+    /**
+     * The name of the MBean registered by {@link #registerMBean()}.
+     */
+    public static final String OBJECT_NAME = "org.eclipse.jetty.alpn:type=alertstatistics";
+
+    private static final int SENT_FATAL = 0;
+    private static final int SENT_WARNING = 1;
+    private static final int RECEIVED_FATAL = 2;
+    private static final int RECEIVED_WARNING = 3;
+
+    private AlertStatistics()
+    {
+    }
+
+    /**
+     * @return the current counts, copied in a single pass over the counters
+     */
+    public static Snapshot snapshot()
+    {
+        long[] counts = new long[4 * 256];
+        Alerts.counts(counts);
+        return new Snapshot(counts);
+    }
+
+    /**
+     * <p>Registers an {@link AlertStatisticsMXBean} with the platform
+     * MBean server, under {@link #OBJECT_NAME}.</p>
+     *
+     * @return the name of the registered MBean
+     * @throws JMException if the MBean cannot be registered
+     */
+    public static ObjectName registerMBean() throws JMException
+    {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+        return name;
+    }
+
+    /**
+     * <p>An immutable copy of the counters.</p>
+     */
+    public static final class Snapshot
+    {
+        private final long[] counts;
+
+        private Snapshot(long[] counts)
+        {
+            this.counts = counts;
+        }
+
+        /**
+         * @param alert the description of the alert, such as 40 for {@code handshake_failure}
+         * @return the number of fatal alerts with the given description sent to peers
+         */
+        public long getSentFatal(int alert)
+        {
+            return count(SENT_FATAL, alert);
+        }
+
+        /**
+         * @param alert the description of the alert
+         * @return the number of warning alerts with the given description sent to peers
+         */
+        public long getSentWarning(int alert)
+        {
+            return count(SENT_WARNING, alert);
+        }
+
+        /**
+         * @param alert the description of the alert
+         * @return the number of fatal alerts with the given description received from peers
+         */
+        public long getReceivedFatal(int alert)
+        {
+            return count(RECEIVED_FATAL, alert);
+        }
+
+        /**
+         * @param alert the description of the alert
+         * @return the number of warning alerts with the given description received from peers
+         */
+        public long getReceivedWarning(int alert)
+        {
+            return count(RECEIVED_WARNING, alert);
+        }
+
+        private long count(int counter, int alert)
+        {
+            return counts[counter * 256 + (alert & 0xFF)];
+        }
+
+        // Maps the names of the alerts counted at least once to their count.
+        private Map<String, Long> names(int counter)
+        {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int alert = 0; alert < 256; ++alert)
+            {
+                long count = count(counter, alert);
+                if (count > 0)
+                    result.put(Alerts.alertDescription((byte)alert), count);
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x{sentFatal=%s,sentWarning=%s,receivedFatal=%s,receivedWarning=%s}",
+                    getClass().getSimpleName(),
+                    hashCode(),
+                    names(SENT_FATAL),
+                    names(SENT_WARNING),
+                    names(RECEIVED_FATAL),
+                    names(RECEIVED_WARNING));
+        }
+    }
+
+    private static class MBean implements AlertStatisticsMXBean
+    {
+        @Override
+        public Map<String, Long> getSentFatal()
+        {
+            return snapshot().names(SENT_FATAL);
+        }
+
+        @Override
+        public Map<String, Long> getSentWarning()
+        {
+            return snapshot().names(SENT_WARNING);
+        }
+
+        @Override
+        public Map<String, Long> getReceivedFatal()
+        {
+            return snapshot().names(RECEIVED_FATAL);
+        }
+
+        @Override
+        public Map<String, Long> getReceivedWarning()
+        {
+            return snapshot().names(RECEIVED_WARNING);
+        }
+    }
+}
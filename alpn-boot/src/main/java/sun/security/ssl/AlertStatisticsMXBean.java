@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.util.Map;
+
+/**
+ * <p>The management interface of {@link AlertStatistics}.</p>
+ * <p>Each attribute maps the names of the alerts, such as
+ * {@code handshake_failure}, to the number of times they were
+ * sent or received; alerts never sent or received are omitted.</p>
+ */
+public interface AlertStatisticsMXBean
+{
+    Map<String, Long> getSentFatal();
+
+    Map<String, Long> getSentWarning();
+
+    Map<String, Long> getReceivedFatal();
+
+    Map<String, Long> getReceivedWarning();
+}
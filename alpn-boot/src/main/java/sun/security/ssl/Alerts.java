@@ -26,6 +26,9 @@
 package sun.security.ssl;
 
 import javax.net.ssl.*;
+// ALPN_CHANGES_BEGIN
+import java.util.concurrent.atomic.LongAdder;
+// ALPN_CHANGES_END
 
 /*
  * A simple class to congregate alerts, their definitions, and common
@@ -85,6 +88,43 @@ final class Alerts {
 
     // ALPN_CHANGES_BEGIN
     static final byte           alert_no_application_protocol = 120;
+
+    // The number of alerts sent and received, by level and description.
+    // LongAdders are striped, so concurrent handshakes do not contend.
+    private static final LongAdder[] sentFatal = newCounters();
+    private static final LongAdder[] sentWarning = newCounters();
+    private static final LongAdder[] receivedFatal = newCounters();
+    private static final LongAdder[] receivedWarning = newCounters();
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[256];
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    // Counts an alert sent to the peer.
+    static void sent(byte level, byte description) {
+        (level == alert_fatal ? sentFatal : sentWarning)[description & 0xFF].increment();
+    }
+
+    // Counts an alert received from the peer.
+    static void received(byte level, byte description) {
+        (level == alert_fatal ? receivedFatal : receivedWarning)[description & 0xFF].increment();
+    }
+
+    // Copies the counters into the given array, indexed by
+    // (direction * 2 + level) * 256 + description, where direction is
+    // 0 for sent and 1 for received, and level is 0 for fatal and 1 for warning.
+    static void counts(long[] counts) {
+        LongAdder[][] counters = {sentFatal, sentWarning, receivedFatal, receivedWarning};
+        for (int i = 0; i < counters.length; ++i) {
+            for (int j = 0; j < 256; ++j) {
+                counts[i * 256 + j] = counters[i][j].sum();
+            }
+        }
+    }
     // ALPN_CHANGES_END
 
     static String alertDescription(byte code) {
@@ -158,7 +198,14 @@ final class Alerts {
         }
     }
 
+    // ALPN_CHANGES_BEGIN
+    // Counts a received fatal alert: this variant is only called by
+    // SSLEngineImpl and SSLSocketImpl when they receive a fatal alert.
+    // ALPN_CHANGES_END
     static SSLException getSSLException(byte description, String reason) {
+        // ALPN_CHANGES_BEGIN
+        received(alert_fatal, description);
+        // ALPN_CHANGES_END
         return getSSLException(description, null, reason);
     }
 
@@ -179,6 +226,15 @@ final class Alerts {
                 reason = "";
             }
         }
+        // ALPN_CHANGES_BEGIN
+        if (StacklessSSLHandshakeException.isStackless(description)) {
+            e = new StacklessSSLHandshakeException(description, reason);
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            return e;
+        }
+        // ALPN_CHANGES_END
         switch (description) {
         case alert_handshake_failure:
         case alert_no_certificate:
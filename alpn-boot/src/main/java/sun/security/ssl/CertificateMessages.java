@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>Caches of the encoded Certificate handshake messages sent by servers.</p>
+ * <p>A full server handshake sends the certificate chain of the alias chosen
+ * by the key manager; encoding the message copies every certificate of the
+ * chain, while the chain only changes when the certificates are rotated.
+ * The message is encoded once per alias of an {@link SSLContext}, and its
+ * bytes are written as they are by later handshakes, so the wire bytes
+ * and the handshake hash are unchanged.</p>
+ * <p>A cached message is only reused for the very same certificate objects
+ * it was encoded from; when the key manager returns a different chain for
+ * an alias, the message is encoded again and replaces the cached one.</p>
+ * <p>The caches are bounded by the {@code org.eclipse.jetty.alpn.cacheSize}
+ * system property (default 64 aliases per context); the contexts are
+ * weakly referenced.</p>
+ */
+public final class CertificateMessages
+{
+    private static final int maxSize = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.cacheSize", 64));
+
+    private static final WeakIdentityMap<SSLSessionContext, ConcurrentMap<String, Encoded>> caches = new WeakIdentityMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private CertificateMessages()
+    {
+    }
+
+    /**
+     * @param context the SSL context of the handshake
+     * @param alias the alias of the chain, or null if unknown
+     * @param certs the certificate chain to send
+     * @return the encoded Certificate message of the given chain
+     * @throws IOException if the message cannot be encoded
+     */
+    static Encoded get(SSLContextImpl context, String alias, X509Certificate[] certs) throws IOException
+    {
+        if (alias == null)
+        {
+            misses.increment();
+            return new Encoded(certs);
+        }
+
+        SSLSessionContext key = context.engineGetServerSessionContext();
+        ConcurrentMap<String, Encoded> cache = caches.get(key);
+        if (cache == null)
+        {
+            // Racing threads may each create a map, only one is kept.
+            cache = new ConcurrentHashMap<>();
+            caches.put(key, cache);
+        }
+
+        Encoded encoded = cache.get(alias);
+        if (encoded != null && encoded.isFor(certs))
+        {
+            hits.increment();
+            return encoded;
+        }
+
+        misses.increment();
+        Encoded result = new Encoded(certs);
+        // A rotated chain replaces the previous one of its alias.
+        if (encoded != null || cache.size() < maxSize)
+            cache.put(alias, result);
+        return result;
+    }
+
+    /**
+     * <p>Clears the cache of the given context.</p>
+     *
+     * @param context the SSL context
+     */
+    public static void invalidate(SSLContext context)
+    {
+        caches.remove(context.getServerSessionContext());
+    }
+
+    /**
+     * @return the number of handshakes that sent a cached Certificate message
+     */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of handshakes that had to encode their Certificate message
+     */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * <p>A Certificate message and its encoded bytes.</p>
+     */
+    static final class Encoded
+    {
+        private final X509Certificate[] certs;
+        private final CertificateMsg message;
+        private final byte[] bytes;
+
+        private Encoded(X509Certificate[] certs) throws IOException
+        {
+            // The key manager may return a new array for each
+            // handshake, so the chain is compared by element.
+            this.certs = certs.clone();
+            this.message = new CertificateMsg(certs);
+            EncodingOutStream output = new EncodingOutStream();
+            message.write(output);
+            this.bytes = output.toByteArray();
+        }
+
+        private boolean isFor(X509Certificate[] chain)
+        {
+            if (chain.length != certs.length)
+                return false;
+            for (int i = 0; i < chain.length; ++i)
+            {
+                if (chain[i] != certs[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the message, for the debug output and the handshake state
+         */
+        CertificateMsg message()
+        {
+            return message;
+        }
+
+        /**
+         * <p>Writes the message, header included, as {@link HandshakeMessage#write(HandshakeOutStream)} does.</p>
+         *
+         * @param output the handshake output
+         * @throws IOException if the message cannot be written
+         */
+        void write(HandshakeOutStream output) throws IOException
+        {
+            output.write(bytes, 0, bytes.length);
+        }
+    }
+}
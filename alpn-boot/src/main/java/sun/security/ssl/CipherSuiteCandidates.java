@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.security.AccessController;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>A cache of the cipher suites that a server may negotiate with a client,
+ * in the order they are tried.</p>
+ * <p>The candidates only depend on the cipher suites sent by the client, on
+ * the cipher suites active on the server (that already reflect the enabled
+ * cipher suites, protocols and algorithm constraints), on whether the server
+ * prefers its own cipher suites and on whether client authentication is
+ * required. Clients of the same kind send the same cipher suites, so the
+ * candidates are computed once per kind of client and configuration, and
+ * only the checks that depend on the keys of the server are done for each
+ * handshake.</p>
+ * <p>Keys compare the cipher suites themselves, not their hash, so different
+ * lists never share an entry. The cache holds the candidates of one list of
+ * active cipher suites at a time: when a handshake has different active
+ * cipher suites, because the enabled cipher suites, the enabled protocols
+ * or the algorithm constraints changed, the entries are dropped. Servers
+ * whose handshakes alternate between different active cipher suites
+ * therefore compute the candidates for most handshakes.</p>
+ * <p>The cache is bounded by the {@code org.eclipse.jetty.alpn.cacheSize}
+ * system property (default 64 entries); when it is full, the candidates
+ * that were not used recently are evicted, so that clients sending many
+ * distinct lists of cipher suites do not fill it for good.</p>
+ */
+public final class CipherSuiteCandidates
+{
+    private static final int maxSize = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.cacheSize", 64));
+
+    private static volatile Generation generation = new Generation(new int[0]);
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private final CipherSuite[] suites;
+    private final int standard;
+
+    /**
+     * @param suites the candidates, the standard ones first, followed by the legacy ones
+     * @param standard the number of standard candidates
+     */
+    CipherSuiteCandidates(CipherSuite[] suites, int standard)
+    {
+        this.suites = suites;
+        this.standard = standard;
+    }
+
+    /**
+     * @return the number of candidates
+     */
+    int size()
+    {
+        return suites.length;
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the candidate at the given index
+     */
+    CipherSuite get(int index)
+    {
+        return suites[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return whether the candidate is only permitted by the legacy algorithm constraints
+     */
+    boolean isLegacy(int index)
+    {
+        return index >= standard;
+    }
+
+    static Key key(CipherSuiteList requested, CipherSuiteList active, boolean preferLocal, boolean clientAuthRequired)
+    {
+        return new Key(ids(requested.collection()), ids(active.collection()), preferLocal, clientAuthRequired);
+    }
+
+    private static int[] ids(Collection<CipherSuite> suites)
+    {
+        int[] ids = new int[suites.size()];
+        int i = 0;
+        for (CipherSuite suite : suites)
+            ids[i++] = suite.id;
+        return ids;
+    }
+
+    /**
+     * @param key the key of the candidates
+     * @return the candidates, or null
+     */
+    static CipherSuiteCandidates get(Key key)
+    {
+        Generation generation = CipherSuiteCandidates.generation;
+        CipherSuiteCandidates candidates = generation.matches(key) ? generation.cache.get(key) : null;
+        if (candidates != null)
+            hits.increment();
+        else
+            misses.increment();
+        return candidates;
+    }
+
+    /**
+     * @param key the key of the candidates
+     * @param candidates the candidates to cache
+     */
+    static void put(Key key, CipherSuiteCandidates candidates)
+    {
+        Generation generation = CipherSuiteCandidates.generation;
+        if (!generation.matches(key))
+        {
+            // The active cipher suites changed, drop the entries of the previous ones.
+            generation = new Generation(key.active);
+            CipherSuiteCandidates.generation = generation;
+        }
+        generation.cache.put(key, candidates);
+    }
+
+    /**
+     * @return the number of handshakes that found their candidates in the cache
+     */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of handshakes that had to compute their candidates
+     */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * <p>Clears the cache, but not the statistics.</p>
+     */
+    public static void clear()
+    {
+        generation.cache.clear();
+    }
+
+    // The candidates computed for the same active cipher suites.
+    private static final class Generation
+    {
+        private final int[] active;
+        private final ClockCache<Key, CipherSuiteCandidates> cache = new ClockCache<>(maxSize);
+
+        private Generation(int[] active)
+        {
+            this.active = active;
+        }
+
+        private boolean matches(Key key)
+        {
+            return active == key.active || Arrays.equals(active, key.active);
+        }
+    }
+
+    static final class Key
+    {
+        private final int[] requested;
+        private final int[] active;
+        private final boolean preferLocal;
+        private final boolean clientAuthRequired;
+        private final int hash;
+
+        private Key(int[] requested, int[] active, boolean preferLocal, boolean clientAuthRequired)
+        {
+            this.requested = requested;
+            this.active = active;
+            this.preferLocal = preferLocal;
+            this.clientAuthRequired = clientAuthRequired;
+            int hash = Arrays.hashCode(requested);
+            hash = hash * 31 + Arrays.hashCode(active);
+            hash = hash * 31 + Boolean.hashCode(preferLocal);
+            this.hash = hash * 31 + Boolean.hashCode(clientAuthRequired);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key that = (Key)obj;
+            return hash == that.hash &&
+                    preferLocal == that.preferLocal &&
+                    clientAuthRequired == that.clientAuthRequired &&
+                    Arrays.equals(requested, that.requested) &&
+                    Arrays.equals(active, that.active);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
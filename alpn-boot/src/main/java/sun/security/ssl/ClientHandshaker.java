@@ -158,6 +158,28 @@ final class ClientHandshaker extends Handshaker {
      */
     private X509Certificate[] reservedServerCerts = null;
 
+    // ALPN_CHANGES_BEGIN
+    // The ALPN provider attached to this handshake via ALPNProviders,
+    // otherwise looked up at most once from the ALPN registry
+    // and then from the defaults of the SSL context.
+    // Engines create their handshaker in beginHandshake(), so the provider
+    // is taken here; sockets create it when they connect or are accepted,
+    // so the provider is taken when first needed, in startHandshake().
+    private ALPN.Provider alpnProvider = ALPNProviders.take();
+    private boolean alpnProviderResolved = alpnProvider != null;
+    // The protocol negotiated by this handshake, recorded in the session on completion.
+    private String alpnProtocol;
+
+    // The extensions that a ServerHello may contain.
+    private static final long serverHelloExtensions =
+            ExtensionType.mask(ExtensionType.EXT_ELLIPTIC_CURVES) |
+            ExtensionType.mask(ExtensionType.EXT_EC_POINT_FORMATS) |
+            ExtensionType.mask(ExtensionType.EXT_SERVER_NAME) |
+            ExtensionType.mask(ExtensionType.EXT_ALPN) |
+            ExtensionType.mask(ExtensionType.EXT_RENEGOTIATION_INFO) |
+            ExtensionType.mask(ExtensionType.EXT_EXTENDED_MASTER_SECRET);
+    // ALPN_CHANGES_END
+
     /*
      * Constructors
      */
@@ -183,6 +205,22 @@ final class ClientHandshaker extends Handshaker {
             clientVerifyData, serverVerifyData);
     }
 
+    // ALPN_CHANGES_BEGIN
+    private ALPN.ClientProvider alpnProvider()
+    {
+        if (!alpnProviderResolved)
+        {
+            alpnProvider = ALPNProviders.take();
+            if (alpnProvider == null)
+                alpnProvider = conn != null ? ALPNProviders.lookup(conn) : ALPNProviders.lookup(engine);
+            if (alpnProvider == null)
+                alpnProvider = ALPNProviders.getDefaultProvider(sslContext.engineGetClientSessionContext());
+            alpnProviderResolved = true;
+        }
+        return (ALPN.ClientProvider)alpnProvider;
+    }
+    // ALPN_CHANGES_END
+
     /*
      * This routine handles all the client side handshake messages, one at
      * a time.  Given the message type (and in some cases the pending cipher
@@ -207,12 +245,20 @@ final class ClientHandshaker extends Handshaker {
             break;
 
         case HandshakeMessage.ht_server_hello:
+            // ALPN_CHANGES_BEGIN
+            try {
+            // ALPN_CHANGES_END
             ServerHello serverHello = new ServerHello(input, messageLen);
             this.serverHello(serverHello);
 
             // This handshake state update needs the resumingSession value
             // set by serverHello().
             handshakeState.update(serverHello, resumingSession);
+            // ALPN_CHANGES_BEGIN
+            } catch (SSLAlertException x) {
+                fatalSE(x.alert, x.getMessage(), x);
+            }
+            // ALPN_CHANGES_END
             break;
 
         case HandshakeMessage.ht_certificate:
@@ -708,22 +754,21 @@ final class ClientHandshaker extends Handshaker {
         }
 
         // check extensions
-        for (HelloExtension ext : mesg.extensions.list()) {
-            ExtensionType type = ext.type;
-            if (type == ExtensionType.EXT_SERVER_NAME) {
-                serverNamesAccepted = true;
-            } else if ((type != ExtensionType.EXT_ELLIPTIC_CURVES)
-                    && (type != ExtensionType.EXT_EC_POINT_FORMATS)
-                    && (type != ExtensionType.EXT_SERVER_NAME)
-                    // ALPN_CHANGES_BEGIN
-                    && (type != ExtensionType.EXT_ALPN)
-                    // ALPN_CHANGES_END
-                    && (type != ExtensionType.EXT_RENEGOTIATION_INFO)
-                    && (type != ExtensionType.EXT_EXTENDED_MASTER_SECRET)){
-                fatalSE(Alerts.alert_unsupported_extension,
-                    "Server sent an unsupported extension: " + type);
+        // ALPN_CHANGES_BEGIN
+        long presence = mesg.extensions.presence();
+        if ((presence & ExtensionType.mask(ExtensionType.EXT_SERVER_NAME)) != 0) {
+            serverNamesAccepted = true;
+        }
+        if ((presence & ~serverHelloExtensions) != 0) {
+            // Find the first unsupported extension, to report it.
+            for (HelloExtension ext : mesg.extensions.list()) {
+                if ((ExtensionType.mask(ext.type) & serverHelloExtensions) == 0) {
+                    fatalSE(Alerts.alert_unsupported_extension,
+                        "Server sent an unsupported extension: " + ext.type);
+                }
             }
         }
+        // ALPN_CHANGES_END
 
         // Create a new session, we need to do the full handshake
         session = new SSLSessionImpl(protocolVersion, cipherSuite,
@@ -746,7 +791,7 @@ final class ClientHandshaker extends Handshaker {
     // ALPN_CHANGES_BEGIN
     private void alpnSelected(ServerHello mesg) throws IOException
     {
-        ALPN.ClientProvider provider = (ALPN.ClientProvider)(conn != null ? ALPN.get(conn) : ALPN.get(engine));
+        ALPN.ClientProvider provider = alpnProvider();
         Object ssl = conn != null ? conn : engine;
         if (provider != null)
         {
@@ -757,26 +802,25 @@ final class ClientHandshaker extends Handshaker {
                 try
                 {
                     String protocol = protocols == null || protocols.isEmpty() ? null : protocols.get(0);
-                    if (ALPN.debug)
-                        System.err.println("[C] ALPN protocol '" + protocol + "' selected by server for " + ssl);
+                    ALPNEvents.event(ALPNEvents.Type.SELECTED, true, ssl, protocol);
+                    alpnProtocol = protocol;
                     provider.selected(protocol);
                 }
                 catch (Throwable x)
                 {
+                    ALPNEvents.event(ALPNEvents.Type.FAILURE, true, ssl, x);
                     fatalSE(Alerts.alert_no_application_protocol, "Could not negotiate application protocol", x);
                 }
             }
             else
             {
-                if (ALPN.debug)
-                    System.err.println("[C] ALPN not supported by server for " + ssl);
+                ALPNEvents.event(ALPNEvents.Type.UNSUPPORTED, true, ssl, null);
                 provider.unsupported();
             }
         }
         else
         {
-            if (ALPN.debug)
-                System.err.println("[C] ALPN client provider not present for " + ssl);
+            ALPNEvents.event(ALPNEvents.Type.PROVIDER_MISSING, true, ssl, null);
         }
     }
     // ALPN_CHANGES_END
@@ -1310,6 +1354,18 @@ final class ClientHandshaker extends Handshaker {
                     + session);
             }
         }
+
+        // ALPN_CHANGES_BEGIN
+        if (isInitialHandshake)
+        {
+            if (alpnProtocol != null)
+                ALPNSessions.setProtocol(session, alpnProtocol);
+            if (conn != null)
+                ALPNProviders.purge(conn);
+            else
+                ALPNProviders.purge(engine);
+        }
+        // ALPN_CHANGES_END
     }
 
 
@@ -1545,37 +1601,43 @@ final class ClientHandshaker extends Handshaker {
                 sslContext.getSecureRandom(), maxProtocolVersion,
                 sessionId, cipherSuites);
 
-        // add elliptic curves and point format extensions
-        if (cipherSuites.containsEC()) {
-            EllipticCurvesExtension ece =
-                EllipticCurvesExtension.createExtension(algorithmConstraints);
-            if (ece != null) {
-                clientHelloMessage.extensions.add(ece);
-                clientHelloMessage.extensions.add(
-                   EllipticPointFormatsExtension.DEFAULT);
-            }
-        }
-
-        // add signature_algorithm extension
+        // ALPN_CHANGES_BEGIN
+        // The extensions before server_name only depend on the configuration,
+        // and are written from a template encoded once per configuration.
+        Collection<SignatureAndHashAlgorithm> localSignAlgs = null;
         if (maxProtocolVersion.v >= ProtocolVersion.TLS12.v) {
             // we will always send the signature_algorithm extension
-            Collection<SignatureAndHashAlgorithm> localSignAlgs =
-                                                getLocalSupportedSignAlgs();
+            localSignAlgs = getLocalSupportedSignAlgs();
             if (localSignAlgs.isEmpty()) {
                 throw new SSLHandshakeException(
                             "No supported signature algorithm");
             }
-
-            clientHelloMessage.addSignatureAlgorithmsExtension(localSignAlgs);
         }
-
-        // add Extended Master Secret extension
-        if (useExtendedMasterSecret && (maxProtocolVersion.v >= ProtocolVersion.TLS10.v)) {
-            if ((session == null) || session.getUseExtendedMasterSecret()) {
-                clientHelloMessage.addExtendedMasterSecretExtension();
-                requestedToUseEMS = true;
-            }
+        boolean ems = useExtendedMasterSecret &&
+                (maxProtocolVersion.v >= ProtocolVersion.TLS10.v) &&
+                ((session == null) || session.getUseExtendedMasterSecret());
+        boolean ec = cipherSuites.containsEC();
+        // The curves only depend on the constraints set by the application,
+        // algorithmConstraints wraps them in a new instance per handshake.
+        AlgorithmConstraints userConstraints = null;
+        if (ec) {
+            userConstraints = (conn != null ? conn.getSSLParameters() :
+                    engine.getSSLParameters()).getAlgorithmConstraints();
+        }
+        ClientHelloTemplates.Key templateKey =
+                ClientHelloTemplates.key(ec, userConstraints, localSignAlgs, ems);
+        ClientHelloTemplates.Template template =
+                ClientHelloTemplates.get(sslContext, templateKey);
+        if (template != null) {
+            clientHelloMessage.extensions.add(template);
+        } else {
+            addConfigurationExtensions(clientHelloMessage, templateKey,
+                    ec, localSignAlgs, ems);
+        }
+        if (ems) {
+            requestedToUseEMS = true;
         }
+        // ALPN_CHANGES_END
 
         // add server_name extension
         if (enableSNIExtension) {
@@ -1607,27 +1669,18 @@ final class ClientHandshaker extends Handshaker {
         // ALPN_CHANGES_BEGIN
         if (isInitialHandshake)
         {
-            ALPN.ClientProvider provider = (ALPN.ClientProvider)(conn != null ? ALPN.get(conn) : ALPN.get(engine));
+            ALPN.ClientProvider provider = alpnProvider();
             Object ssl = conn != null ? conn : engine;
             if (provider != null)
             {
-                List<String> protocols = provider.protocols();
-                if (protocols != null && !protocols.isEmpty())
-                {
-                    if (ALPN.debug)
-                        System.err.println("[C] ALPN protocols " + protocols + " for " + ssl);
-                    clientHelloMessage.extensions.add(new ALPNExtension(protocols));
-                }
-                else
-                {
-                    if (ALPN.debug)
-                        System.err.println("[C] ALPN not supported, no protocols for " + ssl);
-                }
+                ALPNExtension extension = ALPNCache.clientExtension(provider);
+                ALPNEvents.event(ALPNEvents.Type.OFFERED, true, ssl, extension);
+                if (extension != null)
+                    clientHelloMessage.extensions.add(extension);
             }
             else
             {
-                if (ALPN.debug)
-                    System.err.println("[C] ALPN client provider not present for " + ssl);
+                ALPNEvents.event(ALPNEvents.Type.PROVIDER_MISSING, true, ssl, null);
             }
         }
         // ALPN_CHANGES_END
@@ -1635,11 +1688,75 @@ final class ClientHandshaker extends Handshaker {
         return clientHelloMessage;
     }
 
+    // ALPN_CHANGES_BEGIN
+    // Adds the extensions that only depend on the configuration one by one,
+    // as they always were, and caches their encoding for later handshakes.
+    private void addConfigurationExtensions(ClientHello clientHelloMessage,
+            ClientHelloTemplates.Key templateKey, boolean ec,
+            Collection<SignatureAndHashAlgorithm> localSignAlgs,
+            boolean ems) throws SSLException {
+        List<HelloExtension> extensions = new ArrayList<>(4);
+
+        // add elliptic curves and point format extensions
+        if (ec) {
+            EllipticCurvesExtension ece =
+                EllipticCurvesExtension.createExtension(algorithmConstraints);
+            if (ece != null) {
+                extensions.add(ece);
+                extensions.add(EllipticPointFormatsExtension.DEFAULT);
+            }
+        }
+
+        // add signature_algorithm extension
+        if (localSignAlgs != null) {
+            extensions.add(new SignatureAlgorithmsExtension(localSignAlgs));
+        }
+
+        // add Extended Master Secret extension
+        if (ems) {
+            extensions.add(new ExtendedMasterSecretExtension());
+        }
+
+        for (HelloExtension extension : extensions) {
+            clientHelloMessage.extensions.add(extension);
+        }
+        try {
+            ClientHelloTemplates.put(sslContext, templateKey,
+                    extensions.toArray(new HelloExtension[extensions.size()]));
+        } catch (IOException x) {
+            SSLException failure = new SSLException(
+                    "Could not encode ClientHello extensions");
+            failure.initCause(x);
+            throw failure;
+        }
+    }
+    // ALPN_CHANGES_END
+
+    // ALPN_CHANGES_BEGIN
+    // Counts the alerts that the handshake sends through these methods.
+    // Alerts that the engine or the socket send themselves, for example
+    // for record layer errors, are not counted.
+    @Override
+    void fatalSE(byte b, String diagnostic, Throwable cause) throws IOException {
+        Alerts.sent(Alerts.alert_fatal, b);
+        super.fatalSE(b, diagnostic, cause);
+    }
+
+    @Override
+    void warningSE(byte b) {
+        Alerts.sent(Alerts.alert_warning, b);
+        super.warningSE(b);
+    }
+    // ALPN_CHANGES_END
+
     /*
      * Fault detected during handshake.
      */
     @Override
     void handshakeAlert(byte description) throws SSLProtocolException {
+        // ALPN_CHANGES_BEGIN
+        Alerts.received(Alerts.alert_warning, description);
+        // ALPN_CHANGES_END
         String message = Alerts.alertDescription(description);
 
         if (debug != null && Debug.isOn("handshake")) {
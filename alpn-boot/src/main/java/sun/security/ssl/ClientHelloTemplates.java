@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.AlgorithmConstraints;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>Caches of the encoded extensions that start every ClientHello.</p>
+ * <p>The elliptic curves, point formats, signature algorithms and extended
+ * master secret extensions that a client sends only depend on the
+ * configuration of the handshake: whether EC cipher suites are enabled,
+ * the algorithm constraints set by the application, the local signature algorithms and whether
+ * the extended master secret is requested. They are encoded once per
+ * {@link SSLContext} and configuration, and the encoded bytes are written
+ * as they are by later ClientHellos; the extensions that vary per
+ * connection, such as server_name, renegotiation_info and ALPN, are
+ * still added after them, so the wire bytes are unchanged.</p>
+ * <p>The caches are bounded by the {@code org.eclipse.jetty.alpn.cacheSize}
+ * system property (default 64 entries per context); the contexts are
+ * weakly referenced.</p>
+ *
+ * @see ALPNCache
+ */
+public final class ClientHelloTemplates
+{
+    private static final int maxSize = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.cacheSize", 64));
+
+    private static final WeakIdentityMap<SSLContextImpl, ConcurrentMap<Key, Template>> templates = new WeakIdentityMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private ClientHelloTemplates()
+    {
+    }
+
+    /**
+     * @param context the SSL context of the handshake
+     * @param key the configuration of the handshake, see {@link #key(boolean, AlgorithmConstraints, Collection, boolean)}
+     * @return the encoded extensions for the given configuration, or null
+     */
+    static Template get(SSLContextImpl context, Key key)
+    {
+        ConcurrentMap<Key, Template> map = templates.get(context);
+        Template template = map == null ? null : map.get(key);
+        if (template != null)
+            hits.increment();
+        else
+            misses.increment();
+        return template;
+    }
+
+    /**
+     * <p>Encodes and caches the given extensions, added by a ClientHello
+     * with the given configuration before any per-connection extension.</p>
+     *
+     * @param context the SSL context of the handshake
+     * @param key the configuration of the handshake
+     * @param extensions the extensions to encode
+     * @throws IOException if the extensions cannot be encoded
+     */
+    static void put(SSLContextImpl context, Key key, HelloExtension[] extensions) throws IOException
+    {
+        // An empty prefix must not be replaced by a template,
+        // that would add an empty extensions block.
+        if (extensions.length == 0)
+            return;
+        ConcurrentMap<Key, Template> map = templates.get(context);
+        if (map == null)
+        {
+            // Racing threads may each create a map, only one is kept.
+            map = new ConcurrentHashMap<>();
+            templates.put(context, map);
+        }
+        if (map.size() < maxSize)
+            map.putIfAbsent(key.copy(), new Template(extensions));
+    }
+
+    /**
+     * @param ec whether the ClientHello offers EC cipher suites
+     * @param constraints the algorithm constraints set by the application, only relevant if {@code ec} is true
+     * @param signAlgs the local signature algorithms, or null before TLS 1.2
+     * @param ems whether the extended master secret is requested
+     * @return the key of the template for the given configuration
+     */
+    static Key key(boolean ec, AlgorithmConstraints constraints, Collection<SignatureAndHashAlgorithm> signAlgs, boolean ems)
+    {
+        return new Key(ec, ec ? constraints : null, signAlgs, ems);
+    }
+
+    /**
+     * @return the number of ClientHellos that used a cached template
+     */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of ClientHellos whose extensions had to be created
+     */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    static final class Key
+    {
+        private final boolean ec;
+        private final AlgorithmConstraints constraints;
+        private final Collection<SignatureAndHashAlgorithm> signAlgs;
+        private final boolean ems;
+
+        private Key(boolean ec, AlgorithmConstraints constraints, Collection<SignatureAndHashAlgorithm> signAlgs, boolean ems)
+        {
+            this.ec = ec;
+            this.constraints = constraints;
+            this.signAlgs = signAlgs;
+            this.ems = ems;
+        }
+
+        // Lookup keys refer to the handshake's own collection, stored keys to a copy.
+        private Key copy()
+        {
+            return new Key(ec, constraints, signAlgs == null ? null : new ArrayList<>(signAlgs), ems);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key that = (Key)obj;
+            return ec == that.ec &&
+                    ems == that.ems &&
+                    constraints == that.constraints &&
+                    sameAlgorithms(signAlgs, that.signAlgs);
+        }
+
+        private static boolean sameAlgorithms(Collection<SignatureAndHashAlgorithm> c1, Collection<SignatureAndHashAlgorithm> c2)
+        {
+            if (c1 == null || c2 == null)
+                return c1 == c2;
+            // Compare in order, the order is part of the encoding.
+            return c1.size() == c2.size() && new ArrayList<>(c1).equals(new ArrayList<>(c2));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = Boolean.hashCode(ec) * 31 + Boolean.hashCode(ems);
+            hash = hash * 31 + System.identityHashCode(constraints);
+            if (signAlgs != null)
+            {
+                for (SignatureAndHashAlgorithm signAlg : signAlgs)
+                    hash = hash * 31 + Objects.hashCode(signAlg);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * <p>The encoded bytes of a sequence of extensions, sent as they are.</p>
+     */
+    static final class Template extends HelloExtension
+    {
+        private final HelloExtension[] extensions;
+        private final byte[] encoded;
+
+        private Template(HelloExtension[] extensions) throws IOException
+        {
+            super(extensions[0].type);
+            this.extensions = extensions;
+            EncodingOutStream output = new EncodingOutStream();
+            for (HelloExtension extension : extensions)
+                extension.send(output);
+            this.encoded = output.toByteArray();
+        }
+
+        /**
+         * @return the extensions this template was encoded from
+         */
+        HelloExtension[] extensions()
+        {
+            return extensions;
+        }
+
+        @Override
+        int length()
+        {
+            return encoded.length;
+        }
+
+        @Override
+        void send(HandshakeOutStream out) throws IOException
+        {
+            out.write(encoded, 0, encoded.length);
+        }
+
+        @Override
+        public String toString()
+        {
+            // One line per extension, as if they were sent one by one.
+            StringBuilder builder = new StringBuilder();
+            for (HelloExtension extension : extensions)
+            {
+                if (builder.length() > 0)
+                    builder.append(System.lineSeparator());
+                builder.append(extension);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>A concurrent cache bounded by its number of entries, that evicts
+ * entries with the clock (second chance) algorithm.</p>
+ * <p>Entries are marked when they are read. When the cache is full, a put
+ * moves the hand of the clock over the entries, unmarking the marked ones,
+ * and evicts the first entry that is not marked. Entries that are read
+ * again therefore survive the entries that are only put, for example those
+ * of keys chosen by clients, so the cache cannot be filled for good.</p>
+ * <p>Puts concurrent with an eviction may exceed the bound by the number
+ * of threads that put.</p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class ClockCache<K, V>
+{
+    private final ConcurrentMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final int maxSize;
+    // Guarded by this.
+    private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+    /**
+     * @param maxSize the maximum number of entries, 0 to not cache
+     */
+    ClockCache(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    V get(K key)
+    {
+        Entry<V> entry = map.get(key);
+        if (entry == null)
+            return null;
+        // Only write when needed, not to share the cache line on every read.
+        if (!entry.marked)
+            entry.marked = true;
+        return entry.value;
+    }
+
+    /**
+     * <p>Caches the given value if the key is not cached yet,
+     * evicting an entry if the cache is full.</p>
+     */
+    void put(K key, V value)
+    {
+        if (maxSize <= 0 || map.containsKey(key))
+            return;
+        if (map.size() >= maxSize)
+            evict();
+        map.putIfAbsent(key, new Entry<>(value));
+    }
+
+    int size()
+    {
+        return map.size();
+    }
+
+    void clear()
+    {
+        map.clear();
+    }
+
+    private synchronized void evict()
+    {
+        // Two turns at most: the first one unmarks all the entries.
+        for (int turns = 2 * map.size() + 1; turns > 0 && map.size() >= maxSize; --turns)
+        {
+            // The iterators of the map are weakly consistent, so the
+            // hand stays valid while entries are added and removed.
+            if (hand == null || !hand.hasNext())
+                hand = map.entrySet().iterator();
+            if (!hand.hasNext())
+                return;
+            Map.Entry<K, Entry<V>> next = hand.next();
+            Entry<V> entry = next.getValue();
+            if (entry.marked)
+                entry.marked = false;
+            else
+                map.remove(next.getKey(), entry);
+        }
+    }
+
+    private static class Entry<V>
+    {
+        private final V value;
+        private volatile boolean marked;
+
+        private Entry(V value)
+        {
+            this.value = value;
+        }
+    }
+}
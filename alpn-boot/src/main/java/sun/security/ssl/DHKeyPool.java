@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AccessController;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.spec.DHParameterSpec;
+import javax.net.ssl.SSLContext;
+
+import sun.security.action.GetIntegerAction;
+import sun.security.action.GetPropertyAction;
+
+/**
+ * <p>The DH groups and pools of ephemeral DH key pairs of the server handshakes.</p>
+ * <p>The group of each DH key size is computed once, by the first handshake
+ * that needs it, or loaded from the file named by the
+ * {@code org.eclipse.jetty.alpn.dhParameters} system property, or with
+ * {@link #loadParameters(File)}; later handshakes only generate key pairs
+ * in that group. This matters for the key sizes, set with the
+ * {@code jdk.tls.ephemeralDHKeySize} system property, that have no
+ * pre-computed group in the JDK, and whose group generation is extremely
+ * slow.</p>
+ * <p>The file has a group per line, as <code>{p, g}</code> in hexadecimal;
+ * lines starting with {@code #} are ignored. Loaded groups are validated:
+ * both {@code p} and {@code (p - 1) / 2} must be prime, and {@code g} must
+ * be between 2 and {@code p - 2}. The size of a loaded group is the bit
+ * length of its {@code p}, and it replaces the group of that size.</p>
+ * <p>The invalid groups of the file named by the system property, or the
+ * file itself if it cannot be read, are skipped, so that the handshakes
+ * compute the groups of those sizes; they are counted by {@link #getSkipped()}
+ * and reported by the {@code javax.net.debug=ssl:sslctx} debug output.
+ * {@link #loadParameters(File)} instead rejects the whole file.</p>
+ * <p>Key pairs can also be generated in advance, in pools per {@link SSLContext}
+ * and key size, as for {@link ECDHKeyPool}; the pools are enabled with a
+ * positive watermark, set by the {@code org.eclipse.jetty.alpn.dhPoolSize}
+ * system property or with {@link #setWatermark(int)}.</p>
+ */
+public final class DHKeyPool
+{
+    private static final Debug debug = Debug.getInstance("ssl");
+    private static final LongAdder skipped = new LongAdder();
+    private static final ConcurrentMap<Integer, DHParameterSpec> groups = new ConcurrentHashMap<>();
+    private static final EphemeralKeyPool<DHCrypt> pools = new EphemeralKeyPool<DHCrypt>(
+            AccessController.doPrivileged(new GetIntegerAction("org.eclipse.jetty.alpn.dhPoolSize", 0)))
+    {
+        @Override
+        DHCrypt generate(int keySize, SecureRandom random)
+        {
+            DHParameterSpec group = groups.get(keySize);
+            if (group != null)
+                return new DHCrypt(group.getP(), group.getG(), random);
+            DHCrypt dh = new DHCrypt(keySize, random);
+            groups.putIfAbsent(keySize, new DHParameterSpec(dh.getModulus(), dh.getBase()));
+            return dh;
+        }
+    };
+
+    static
+    {
+        String file = AccessController.doPrivileged(new GetPropertyAction("org.eclipse.jetty.alpn.dhParameters"));
+        if (file != null && !file.isEmpty())
+        {
+            try
+            {
+                groups.putAll(read(new File(file), false));
+            }
+            catch (IOException x)
+            {
+                skip("Ignoring org.eclipse.jetty.alpn.dhParameters " + file + ": " + x);
+            }
+        }
+    }
+
+    private DHKeyPool()
+    {
+    }
+
+    /**
+     * <p>Loads and validates DH groups, replacing the groups of the same size.</p>
+     * <p>No group is loaded if the file contains an invalid group.</p>
+     *
+     * @param file the file of the groups, see the format above
+     * @throws IOException if the file cannot be read, or contains an invalid group
+     */
+    public static void loadParameters(File file) throws IOException
+    {
+        groups.putAll(read(file, true));
+    }
+
+    /**
+     * @param file the file of the groups
+     * @param strict whether an invalid group fails the whole file, or is reported and skipped
+     * @return the valid groups of the file, by size
+     * @throws IOException if the file cannot be read, or contains an invalid group in strict mode
+     */
+    static Map<Integer, DHParameterSpec> read(File file, boolean strict) throws IOException
+    {
+        Map<Integer, DHParameterSpec> result = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                try
+                {
+                    DHParameterSpec group = parse(line);
+                    result.put(group.getP().bitLength(), group);
+                }
+                catch (IOException x)
+                {
+                    if (strict)
+                        throw x;
+                    skip("Ignoring invalid group of " + file + ": " + x.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void skip(String message)
+    {
+        skipped.increment();
+        if (debug != null && Debug.isOn("sslctx"))
+            System.out.println(message);
+    }
+
+    static DHParameterSpec parse(String line) throws IOException
+    {
+        if (!line.startsWith("{") || !line.endsWith("}"))
+            throw new IOException("Invalid DH group: " + line);
+        String[] parts = line.substring(1, line.length() - 1).split(",");
+        if (parts.length != 2)
+            throw new IOException("Invalid DH group: " + line);
+        try
+        {
+            BigInteger p = new BigInteger(parts[0].trim(), 16);
+            BigInteger g = new BigInteger(parts[1].trim(), 16);
+            BigInteger two = BigInteger.valueOf(2);
+            if (g.compareTo(two) < 0 || g.compareTo(p.subtract(two)) > 0)
+                throw new IOException("Invalid DH generator: " + line);
+            if (!p.isProbablePrime(40) || !p.subtract(BigInteger.ONE).shiftRight(1).isProbablePrime(40))
+                throw new IOException("DH modulus is not a safe prime: " + line);
+            return new DHParameterSpec(p, g);
+        }
+        catch (NumberFormatException x)
+        {
+            throw new IOException("Invalid DH group: " + line, x);
+        }
+    }
+
+    /**
+     * @param keySize the size of the DH key
+     * @return the group of the given size, or null if it was neither loaded nor computed yet
+     */
+    static DHParameterSpec group(int keySize)
+    {
+        return groups.get(keySize);
+    }
+
+    /**
+     * @param context the SSL context of the handshake
+     * @param keySize the size of the DH key
+     * @return an ephemeral key pair of the given size, never returned before
+     */
+    static DHCrypt take(SSLContextImpl context, int keySize)
+    {
+        return pools.take(context, keySize);
+    }
+
+    /**
+     * @return the number of key pairs kept in each pool, 0 if the pools are disabled
+     */
+    public static int getWatermark()
+    {
+        return pools.getWatermark();
+    }
+
+    /**
+     * <p>Sets the number of key pairs kept in each pool; key pairs already
+     * pooled above a lower watermark are dropped, and all the pooled key
+     * pairs are dropped when the pools are disabled.</p>
+     *
+     * @param watermark the number of key pairs kept in each pool, 0 to disable the pools
+     */
+    public static void setWatermark(int watermark)
+    {
+        pools.setWatermark(watermark);
+    }
+
+    /**
+     * @return the number of key pairs currently pooled, for all the live contexts and key sizes
+     */
+    public static int getDepth()
+    {
+        return pools.getDepth();
+    }
+
+    /**
+     * @return the number of key pairs taken from the pools
+     */
+    public static long getTaken()
+    {
+        return pools.getTaken();
+    }
+
+    /**
+     * @return the number of key pairs generated by handshakes because their pool was empty
+     */
+    public static long getFallbacks()
+    {
+        return pools.getFallbacks();
+    }
+
+    /**
+     * @return the number of refills that failed to generate a key pair
+     */
+    public static long getFailures()
+    {
+        return pools.getFailures();
+    }
+
+    /**
+     * @return the number of invalid groups, or unreadable files, that were skipped
+     * when reading the file named by the {@code org.eclipse.jetty.alpn.dhParameters}
+     * system property
+     */
+    public static long getSkipped()
+    {
+        return skipped.sum();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.security.AccessController;
+import java.security.SecureRandom;
+import javax.net.ssl.SSLContext;
+
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>Pools of ephemeral ECDH key pairs, generated in advance by a
+ * background thread for the server handshakes.</p>
+ * <p>Generating an EC key pair is the most expensive part of an ECDHE
+ * server handshake before the signature; with the pools enabled, the
+ * handshake takes a key pair generated in advance, and only generates
+ * one itself when the pool is empty. Each key pair is taken from its
+ * pool once, so it is used by a single handshake.</p>
+ * <p>There is a pool per {@link SSLContext} and curve, whose keys are
+ * generated with the secure random of the context. When a handshake
+ * leaves fewer key pairs than the watermark in a pool, the background
+ * thread refills the pool up to the watermark.</p>
+ * <p>The pools are disabled by default; they are enabled with a positive
+ * watermark, set by the {@code org.eclipse.jetty.alpn.ecdhPoolSize}
+ * system property or with {@link #setWatermark(int)}.</p>
+ */
+public final class ECDHKeyPool
+{
+    private static final EphemeralKeyPool<ECDHCrypt> pools = new EphemeralKeyPool<ECDHCrypt>(
+            AccessController.doPrivileged(new GetIntegerAction("org.eclipse.jetty.alpn.ecdhPoolSize", 0)))
+    {
+        @Override
+        ECDHCrypt generate(int curveId, SecureRandom random)
+        {
+            return new ECDHCrypt(curveId, random);
+        }
+    };
+
+    private ECDHKeyPool()
+    {
+    }
+
+    /**
+     * @return the number of key pairs kept in each pool, 0 if the pools are disabled
+     */
+    public static int getWatermark()
+    {
+        return pools.getWatermark();
+    }
+
+    /**
+     * <p>Sets the number of key pairs kept in each pool; key pairs already
+     * pooled above a lower watermark are dropped, and all the pooled key
+     * pairs are dropped when the pools are disabled.</p>
+     *
+     * @param watermark the number of key pairs kept in each pool, 0 to disable the pools
+     */
+    public static void setWatermark(int watermark)
+    {
+        pools.setWatermark(watermark);
+    }
+
+    /**
+     * @param context the SSL context of the handshake
+     * @param curveId the id of the named curve
+     * @return an ephemeral key pair for the given curve, never returned before
+     */
+    static ECDHCrypt take(SSLContextImpl context, int curveId)
+    {
+        return pools.take(context, curveId);
+    }
+
+    /**
+     * @return the number of key pairs currently pooled, for all the live contexts and curves
+     */
+    public static int getDepth()
+    {
+        return pools.getDepth();
+    }
+
+    /**
+     * @return the number of key pairs taken from the pools
+     */
+    public static long getTaken()
+    {
+        return pools.getTaken();
+    }
+
+    /**
+     * @return the number of key pairs generated by handshakes because their pool was empty
+     */
+    public static long getFallbacks()
+    {
+        return pools.getFallbacks();
+    }
+
+    /**
+     * @return the number of refills that failed to generate a key pair
+     */
+    public static long getFailures()
+    {
+        return pools.getFailures();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * <p>A {@link HandshakeOutStream} that collects the bytes written by
+ * handshake messages and extensions, instead of writing them to a record,
+ * so that they can be encoded once and sent as they are.</p>
+ */
+final class EncodingOutStream extends HandshakeOutStream
+{
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    EncodingOutStream()
+    {
+        super(ProtocolVersion.DEFAULT, ProtocolVersion.DEFAULT, null, (SSLSocketImpl)null);
+    }
+
+    @Override
+    public void write(int b)
+    {
+        bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        bytes.write(b, off, len);
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    void putInt8(int i)
+    {
+        bytes.write(i);
+    }
+
+    @Override
+    void putInt16(int i)
+    {
+        bytes.write(i >> 8);
+        bytes.write(i);
+    }
+
+    @Override
+    void putInt24(int i)
+    {
+        bytes.write(i >> 16);
+        putInt16(i);
+    }
+
+    @Override
+    void putInt32(int i)
+    {
+        bytes.write(i >> 24);
+        putInt24(i);
+    }
+
+    @Override
+    void putBytes8(byte[] b)
+    {
+        int length = b == null ? 0 : b.length;
+        putInt8(length);
+        bytes.write(b, 0, length);
+    }
+
+    @Override
+    public void putBytes16(byte[] b)
+    {
+        int length = b == null ? 0 : b.length;
+        putInt16(length);
+        bytes.write(b, 0, length);
+    }
+
+    @Override
+    void putBytes24(byte[] b)
+    {
+        int length = b == null ? 0 : b.length;
+        putInt24(length);
+        bytes.write(b, 0, length);
+    }
+
+    byte[] toByteArray()
+    {
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Pools of single-use ephemeral keys, generated in advance by a
+ * background thread, per SSL context and key id, such as a curve id
+ * or a key size.</p>
+ * <p>Each key is removed from its pool when taken, so it is used by
+ * a single handshake; when a pool is empty, the handshake generates
+ * its key itself. When a handshake leaves fewer keys than the watermark
+ * in a pool, the background thread refills the pool up to the watermark.
+ * Lowering the watermark drops the keys pooled above it, and a watermark
+ * of 0 disables the pools and drops all their keys, so that unused private
+ * keys do not stay in memory.</p>
+ *
+ * @param <T> the type of the keys
+ * @see ECDHKeyPool
+ * @see DHKeyPool
+ */
+abstract class EphemeralKeyPool<T>
+{
+    private final WeakIdentityMap<SSLContextImpl, ConcurrentMap<Integer, Pool>> pools = new WeakIdentityMap<>();
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile int watermark;
+
+    EphemeralKeyPool(int watermark)
+    {
+        setWatermark(watermark);
+    }
+
+    /**
+     * @param id the key id
+     * @param random the secure random of the SSL context
+     * @return a new key
+     */
+    abstract T generate(int id, SecureRandom random);
+
+    int getWatermark()
+    {
+        return watermark;
+    }
+
+    void setWatermark(int watermark)
+    {
+        if (watermark < 0)
+            throw new IllegalArgumentException("Invalid watermark " + watermark);
+        int previous = this.watermark;
+        this.watermark = watermark;
+        if (watermark == 0)
+        {
+            // A refill in progress stops at the new watermark,
+            // and its pool is no longer reachable from the map.
+            pools.clear();
+        }
+        else if (watermark < previous)
+        {
+            for (ConcurrentMap<Integer, Pool> ids : pools.values())
+            {
+                for (Pool pool : ids.values())
+                    pool.trim();
+            }
+        }
+    }
+
+    /**
+     * @param context the SSL context of the handshake
+     * @param id the key id
+     * @return a key for the given id, never returned before
+     */
+    T take(SSLContextImpl context, int id)
+    {
+        if (watermark <= 0)
+            return generate(id, context.getSecureRandom());
+
+        Pool pool = pool(context, id);
+        T key = pool.poll();
+        if (key != null)
+        {
+            taken.increment();
+        }
+        else
+        {
+            fallbacks.increment();
+            key = generate(id, context.getSecureRandom());
+        }
+        pool.refill();
+        return key;
+    }
+
+    private Pool pool(SSLContextImpl context, int id)
+    {
+        ConcurrentMap<Integer, Pool> ids = pools.get(context);
+        if (ids == null)
+        {
+            synchronized (pools)
+            {
+                ids = pools.get(context);
+                if (ids == null)
+                {
+                    ids = new ConcurrentHashMap<>();
+                    pools.put(context, ids);
+                }
+            }
+        }
+        Pool pool = ids.get(id);
+        if (pool == null)
+        {
+            // The pool must not refer to the context, that is weakly referenced.
+            pool = new Pool(id, context.getSecureRandom());
+            Pool existing = ids.putIfAbsent(id, pool);
+            if (existing != null)
+                pool = existing;
+        }
+        return pool;
+    }
+
+    /**
+     * @return the number of keys in the pools of the contexts that have not been collected
+     */
+    int getDepth()
+    {
+        int depth = 0;
+        for (ConcurrentMap<Integer, Pool> ids : pools.values())
+        {
+            for (Pool pool : ids.values())
+                depth += pool.size.get();
+        }
+        return depth;
+    }
+
+    long getTaken()
+    {
+        return taken.sum();
+    }
+
+    long getFallbacks()
+    {
+        return fallbacks.sum();
+    }
+
+    long getFailures()
+    {
+        return failures.sum();
+    }
+
+    private class Pool implements Runnable
+    {
+        private final Queue<T> keys = new ConcurrentLinkedQueue<>();
+        // The size of the queue is not constant time, so it is tracked separately.
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private final int id;
+        private final SecureRandom random;
+
+        private Pool(int id, SecureRandom random)
+        {
+            this.id = id;
+            this.random = random;
+        }
+
+        private T poll()
+        {
+            T key = keys.poll();
+            if (key != null)
+            {
+                size.decrementAndGet();
+            }
+            return key;
+        }
+
+        // Drops the keys above the watermark.
+        private void trim()
+        {
+            while (size.get() > watermark && poll() != null)
+            {
+            }
+        }
+
+        private void refill()
+        {
+            if (size.get() < watermark && refilling.compareAndSet(false, true))
+                Refiller.executor.execute(this);
+        }
+
+        @Override
+        public void run()
+        {
+            boolean failed = false;
+            try
+            {
+                while (size.get() < watermark)
+                {
+                    keys.offer(generate(id, random));
+                    size.incrementAndGet();
+                }
+            }
+            catch (RuntimeException x)
+            {
+                // Handshakes generate their own keys until the next refill.
+                failures.increment();
+                failed = true;
+            }
+            finally
+            {
+                refilling.set(false);
+            }
+            // A key taken after the loop and before the flag was reset did
+            // not submit a refill; after a failure, the next take retries.
+            if (!failed)
+                refill();
+        }
+    }
+
+    // Holds the background thread, only started when the pools are used.
+    private static class Refiller
+    {
+        private static final Executor executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "alpn-ephemeral-key-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
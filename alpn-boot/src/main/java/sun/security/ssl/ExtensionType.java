@@ -27,15 +27,36 @@ package sun.security.ssl;
 
 import java.util.ArrayList;
 import java.util.List;
+// ALPN_CHANGES_BEGIN
+import java.util.concurrent.atomic.AtomicReferenceArray;
+// ALPN_CHANGES_END
 
 final class ExtensionType {
 
     final int id;
     final String name;
+    // ALPN_CHANGES_BEGIN
+    // The dense index of known types, or -1 for unknown types.
+    final int index;
+    // The handler of unknown types, see HelloExtensionHandler.
+    volatile HelloExtensionHandler handler;
+
+    // The presence bit shared by all unknown types.
+    static final long UNKNOWN_MASK = 1L << 63;
+    // ALPN_CHANGES_END
 
     private ExtensionType(int id, String name) {
+        // ALPN_CHANGES_BEGIN
+        this(id, name, -1);
+    }
+
+    private ExtensionType(int id, String name, int index) {
+        // ALPN_CHANGES_END
         this.id = id;
         this.name = name;
+        // ALPN_CHANGES_BEGIN
+        this.index = index;
+        // ALPN_CHANGES_END
     }
 
     @Override
@@ -45,20 +66,57 @@ final class ExtensionType {
 
     static List<ExtensionType> knownExtensions = new ArrayList<ExtensionType>(15);
 
+    // ALPN_CHANGES_BEGIN
+    // All the types, known and unknown, indexed by id: 256 pages of 256
+    // entries, each page allocated when one of its ids is first seen.
+    // Unknown types are interned, so that received extensions with unknown
+    // ids do not allocate.
+    private static final
+            AtomicReferenceArray<AtomicReferenceArray<ExtensionType>> types =
+                    new AtomicReferenceArray<>(256);
+
     static ExtensionType get(int id) {
-        for (ExtensionType ext : knownExtensions) {
-            if (ext.id == id) {
-                return ext;
+        if ((id & ~0xFFFF) != 0) {
+            return new ExtensionType(id, "type_" + id);
+        }
+        AtomicReferenceArray<ExtensionType> page = page(id);
+        int index = id & 0xFF;
+        ExtensionType ext = page.get(index);
+        if (ext == null) {
+            ext = new ExtensionType(id, "type_" + id);
+            if (!page.compareAndSet(index, null, ext)) {
+                ext = page.get(index);
             }
         }
-        return new ExtensionType(id, "type_" + id);
+        return ext;
+    }
+
+    private static AtomicReferenceArray<ExtensionType> page(int id) {
+        int index = id >>> 8;
+        AtomicReferenceArray<ExtensionType> page = types.get(index);
+        if (page == null) {
+            page = new AtomicReferenceArray<>(256);
+            if (!types.compareAndSet(index, null, page)) {
+                page = types.get(index);
+            }
+        }
+        return page;
+    }
+
+    // Returns the presence bit of the given type in a bitmask
+    // of types, see HelloExtensions.presence().
+    static long mask(ExtensionType type) {
+        return type.index >= 0 ? 1L << type.index : UNKNOWN_MASK;
     }
 
     private static ExtensionType e(int id, String name) {
-        ExtensionType ext = new ExtensionType(id, name);
+        // Known types must fit in the 63 low bits of a presence mask.
+        ExtensionType ext = new ExtensionType(id, name, knownExtensions.size());
         knownExtensions.add(ext);
+        page(id).set(id & 0xFF, ext);
         return ext;
     }
+    // ALPN_CHANGES_END
 
     // extensions defined in RFC 3546
     final static ExtensionType EXT_SERVER_NAME =
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * <p>A handler of ClientHello extensions that this implementation does not support.</p>
+ * <p>Unsupported extensions are skipped without copying their data, unless
+ * a handler is registered for their type: the server then retains their
+ * data and passes it to the handler while processing the ClientHello,
+ * before the ALPN protocol is selected.</p>
+ */
+public interface HelloExtensionHandler
+{
+    /**
+     * <p>Callback invoked when a ClientHello carries an extension of the type of this handler.</p>
+     *
+     * @param connection the {@link javax.net.ssl.SSLEngine} or
+     * {@link javax.net.ssl.SSLSocket} that received the extension
+     * @param data a read-only view of the extension data
+     * @throws SSLException to fail the handshake
+     */
+    void handle(Object connection, ByteBuffer data) throws SSLException;
+
+    /**
+     * @param type the extension type
+     * @param handler the handler for the extension type, or null to remove it
+     * @throws IllegalArgumentException if the type is supported by this implementation
+     */
+    static void register(int type, HelloExtensionHandler handler)
+    {
+        if ((type & ~0xFFFF) != 0)
+            throw new IllegalArgumentException("Invalid extension type: " + type);
+        ExtensionType extType = ExtensionType.get(type);
+        if (extType.index >= 0)
+            throw new IllegalArgumentException("Supported extension type: " + extType);
+        extType.handler = handler;
+    }
+}
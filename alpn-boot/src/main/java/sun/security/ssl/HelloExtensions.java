@@ -27,8 +27,15 @@ package sun.security.ssl;
 
 import java.io.IOException;
 import java.io.PrintStream;
+// ALPN_CHANGES_BEGIN
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+// ALPN_CHANGES_END
 import java.util.*;
 import javax.net.ssl.*;
+// ALPN_CHANGES_BEGIN
+import sun.security.action.GetIntegerAction;
+// ALPN_CHANGES_END
 
 /**
  * This file contains all the classes relevant to TLS Extensions for the
@@ -60,6 +67,31 @@ final class HelloExtensions {
 
     private List<HelloExtension> extensions;
     private int encodedLength;
+    // ALPN_CHANGES_BEGIN
+    // The first extension of each known type, by ExtensionType.index.
+    private HelloExtension[] slots;
+    // The presence bits of the types of the extensions,
+    // see ExtensionType.mask().
+    private long presence;
+
+    // Lazy mode, see LazyHelloExtensions: the received extensions block,
+    // the type, offset and length of each extension in it, each extension
+    // once decoded, and 1 + the position of the first extension of each
+    // known type, by ExtensionType.index.
+    private byte[] raw;
+    private ExtensionType[] rawTypes;
+    private int[] rawOffsets;
+    private int[] rawLengths;
+    private HelloExtension[] decoded;
+    private int[] positions;
+
+    // The max number of extensions accepted in a received message.
+    private static final int maxExtensions = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.maxExtensions", 64));
+    // The ids of the unknown types received so far, to reject duplicates.
+    private int[] unknownIds;
+    private int unknownCount;
+    // ALPN_CHANGES_END
 
     HelloExtensions() {
         extensions = Collections.emptyList();
@@ -67,33 +99,26 @@ final class HelloExtensions {
 
     HelloExtensions(HandshakeInStream s) throws IOException {
         int len = s.getInt16();
+        // ALPN_CHANGES_BEGIN
+        if (LazyHelloExtensions.isEnabled()) {
+            frame(s, len);
+            return;
+        }
+        // ALPN_CHANGES_END
         extensions = new ArrayList<HelloExtension>();
         encodedLength = len + 2;
         while (len > 0) {
             int type = s.getInt16();
             int extlen = s.getInt16();
             ExtensionType extType = ExtensionType.get(type);
-            HelloExtension extension;
-            if (extType == ExtensionType.EXT_SERVER_NAME) {
-                extension = new ServerNameExtension(s, extlen);
-            } else if (extType == ExtensionType.EXT_SIGNATURE_ALGORITHMS) {
-                extension = new SignatureAlgorithmsExtension(s, extlen);
-            } else if (extType == ExtensionType.EXT_ELLIPTIC_CURVES) {
-                extension = new EllipticCurvesExtension(s, extlen);
-            } else if (extType == ExtensionType.EXT_EC_POINT_FORMATS) {
-                extension = new EllipticPointFormatsExtension(s, extlen);
-            } else if (extType == ExtensionType.EXT_RENEGOTIATION_INFO) {
-                extension = new RenegotiationInfoExtension(s, extlen);
-            } else if (extType == ExtensionType.EXT_EXTENDED_MASTER_SECRET) {
-                extension = new ExtendedMasterSecretExtension(s, extlen);
             // ALPN_CHANGES_BEGIN
-            } else if (extType == ExtensionType.EXT_ALPN) {
-                extension = new ALPNExtension(s, extlen);
-            // ALPN_CHANGES_END
-            } else {
-                extension = new UnknownExtension(s, extlen, extType);
-            }
+            checkReceived(extType, extensions.size() + 1);
+            int available = s.available();
+            HelloExtension extension = decode(s, extType, extlen);
+            checkConsumed(extType, extlen, available - s.available());
             extensions.add(extension);
+            index(extension);
+            // ALPN_CHANGES_END
             len -= extlen + 4;
         }
         if (len != 0) {
@@ -102,20 +127,314 @@ final class HelloExtensions {
         }
     }
 
+    // ALPN_CHANGES_BEGIN
+    private static HelloExtension decode(HandshakeInStream s,
+            ExtensionType extType, int extlen) throws IOException {
+        HelloExtension extension;
+        if (extType == ExtensionType.EXT_SERVER_NAME) {
+            extension = new ServerNameExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_SIGNATURE_ALGORITHMS) {
+            extension = new SignatureAlgorithmsExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_ELLIPTIC_CURVES) {
+            extension = new EllipticCurvesExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_EC_POINT_FORMATS) {
+            extension = new EllipticPointFormatsExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_RENEGOTIATION_INFO) {
+            extension = new RenegotiationInfoExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_EXTENDED_MASTER_SECRET) {
+            extension = new ExtendedMasterSecretExtension(s, extlen);
+        } else if (extType == ExtensionType.EXT_ALPN) {
+            extension = new ALPNExtension(s, extlen);
+        } else {
+            extension = RawExtension.read(s, extType, extlen);
+        }
+        return extension;
+    }
+
+    // Reads the extensions block and records the type, offset and length of
+    // each extension, checking only the framing of the extensions.
+    private void frame(HandshakeInStream s, int len) throws IOException {
+        encodedLength = len + 2;
+        raw = new byte[len];
+        s.read(raw, 0, len);
+
+        int count = 0;
+        int offset = 0;
+        while (offset < len) {
+            if (len - offset < 4) {
+                throw new SSLProtocolException(
+                        "Error parsing extensions: extra data");
+            }
+            offset += 4 + int16(raw, offset + 2);
+            ++count;
+        }
+        if (offset != len) {
+            throw new SSLProtocolException(
+                    "Error parsing extensions: extra data");
+        }
+        if (count > maxExtensions) {
+            throw new SSLAlertException(Alerts.alert_decode_error,
+                    "Too many extensions: " + count);
+        }
+
+        rawTypes = new ExtensionType[count];
+        rawOffsets = new int[count];
+        rawLengths = new int[count];
+        decoded = new HelloExtension[count];
+        positions = new int[ExtensionType.knownExtensions.size()];
+        offset = 0;
+        for (int i = 0; i < count; ++i) {
+            ExtensionType type = ExtensionType.get(int16(raw, offset));
+            int extlen = int16(raw, offset + 2);
+            checkReceived(type, i + 1);
+            checkFraming(type, raw, offset + 4, extlen);
+            rawTypes[i] = type;
+            rawOffsets[i] = offset + 4;
+            rawLengths[i] = extlen;
+            presence |= ExtensionType.mask(type);
+            if (type.index >= 0 && positions[type.index] == 0) {
+                positions[type.index] = i + 1;
+            }
+            offset += 4 + extlen;
+        }
+    }
+
+    // Checks the number of received extensions and rejects duplicate types.
+    // Must be called before the presence bit of the given type is set.
+    private void checkReceived(ExtensionType type, int count)
+            throws SSLProtocolException {
+        if (count > maxExtensions) {
+            throw new SSLAlertException(Alerts.alert_decode_error,
+                    "Too many extensions: " + count);
+        }
+        long mask = ExtensionType.mask(type);
+        if (mask != ExtensionType.UNKNOWN_MASK) {
+            if ((presence & mask) != 0) {
+                throw new SSLAlertException(Alerts.alert_illegal_parameter,
+                        "Duplicate extension: " + type);
+            }
+            return;
+        }
+        if (unknownIds == null) {
+            unknownIds = new int[maxExtensions];
+        }
+        // Bounded by maxExtensions.
+        for (int i = 0; i < unknownCount; ++i) {
+            if (unknownIds[i] == type.id) {
+                throw new SSLAlertException(Alerts.alert_illegal_parameter,
+                        "Duplicate extension: " + type);
+            }
+        }
+        unknownIds[unknownCount++] = type.id;
+    }
+
+    // Lazy mode: checks the length prefix of the data of the known types,
+    // as their decoders do, so that both modes reject the extensions whose
+    // data is not framed as declared when the message is parsed.
+    private static void checkFraming(ExtensionType type, byte[] bytes,
+            int offset, int extlen) throws SSLProtocolException {
+        int framed;
+        if (type == ExtensionType.EXT_SERVER_NAME) {
+            // Empty in ServerHello.
+            framed = extlen == 0 ? 0 :
+                    extlen < 2 || int16(bytes, offset) == 0 ? -1 :
+                    2 + int16(bytes, offset);
+        } else if (type == ExtensionType.EXT_SIGNATURE_ALGORITHMS) {
+            framed = extlen < 2 ? -1 : 2 + int16(bytes, offset);
+        } else if (type == ExtensionType.EXT_ALPN) {
+            // With the alerts of ALPNExtension.
+            if (extlen < 2) {
+                throw new SSLAlertException(Alerts.alert_decode_error,
+                        "Invalid ALPN extension length: " + extlen);
+            }
+            if (2 + int16(bytes, offset) != extlen) {
+                throw new SSLAlertException(Alerts.alert_decode_error,
+                        "Invalid ALPN protocol list length: " +
+                        int16(bytes, offset));
+            }
+            return;
+        } else if (type == ExtensionType.EXT_ELLIPTIC_CURVES) {
+            framed = extlen < 2 || (extlen & 1) != 0 ? -1 :
+                    2 + int16(bytes, offset);
+        } else if (type == ExtensionType.EXT_EC_POINT_FORMATS ||
+                type == ExtensionType.EXT_RENEGOTIATION_INFO) {
+            framed = extlen < 1 ? -1 : 1 + (bytes[offset] & 0xFF);
+        } else if (type == ExtensionType.EXT_EXTENDED_MASTER_SECRET) {
+            framed = 0;
+        } else {
+            return;
+        }
+        if (framed != extlen) {
+            throw new SSLProtocolException("Invalid " + type + " extension");
+        }
+    }
+
+    // Checks that an extension was decoded from exactly its data.
+    private static void checkConsumed(ExtensionType type, int extlen,
+            int consumed) throws SSLProtocolException {
+        if (consumed != extlen) {
+            throw new SSLProtocolException("Error parsing extension " +
+                    type + ": extra data");
+        }
+    }
+
+    private static int int16(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private HelloExtension decode(int position) throws IOException {
+        HelloExtension extension = decoded[position];
+        if (extension == null && rawTypes[position].index < 0) {
+            extension = RawExtension.view(rawTypes[position], raw,
+                    rawOffsets[position], rawLengths[position]);
+            decoded[position] = extension;
+        }
+        if (extension == null) {
+            ExtensionInStream input = new ExtensionInStream(raw,
+                    rawOffsets[position], rawLengths[position]);
+            extension = decode(input, rawTypes[position], rawLengths[position]);
+            checkConsumed(rawTypes[position], rawLengths[position],
+                    rawLengths[position] - input.available());
+            decoded[position] = extension;
+        }
+        return extension;
+    }
+
+    // Decodes all the extensions, leaving lazy mode.
+    private void decodeAll() throws IOException {
+        if (raw == null) {
+            return;
+        }
+        extensions = new ArrayList<HelloExtension>(decoded.length);
+        for (int i = 0; i < decoded.length; ++i) {
+            HelloExtension extension = decode(i);
+            extensions.add(extension);
+            index(extension);
+        }
+        raw = null;
+        rawTypes = null;
+        rawOffsets = null;
+        rawLengths = null;
+        decoded = null;
+        positions = null;
+    }
+
+    // Passes the data of the unsupported extensions to their handler, if any.
+    void handle(Object connection) throws IOException {
+        if ((presence & ExtensionType.UNKNOWN_MASK) == 0) {
+            return;
+        }
+        if (raw != null) {
+            for (int i = 0; i < rawTypes.length; ++i) {
+                HelloExtensionHandler handler = rawTypes[i].handler;
+                if (handler != null && rawTypes[i].index < 0) {
+                    handler.handle(connection,
+                            ((RawExtension)decode(i)).data());
+                }
+            }
+        } else {
+            for (HelloExtension ext : extensions) {
+                HelloExtensionHandler handler = ext.type.handler;
+                if (handler != null && ext instanceof RawExtension) {
+                    // Null if the handler was registered after
+                    // the extension was skipped.
+                    ByteBuffer data = ((RawExtension)ext).data();
+                    if (data != null) {
+                        handler.handle(connection, data);
+                    }
+                }
+            }
+        }
+    }
+    // ALPN_CHANGES_END
+
     // Return the List of extensions. Must not be modified by the caller.
-    List<HelloExtension> list() {
+    // ALPN_CHANGES_BEGIN
+    List<HelloExtension> list() throws IOException {
+        decodeAll();
+    // ALPN_CHANGES_END
         return extensions;
     }
 
     void add(HelloExtension ext) {
+        // ALPN_CHANGES_BEGIN
+        checkWritable();
+        // ALPN_CHANGES_END
         if (extensions.isEmpty()) {
             extensions = new ArrayList<HelloExtension>();
         }
         extensions.add(ext);
+        // ALPN_CHANGES_BEGIN
+        index(ext);
+        // ALPN_CHANGES_END
         encodedLength = -1;
     }
 
-    HelloExtension get(ExtensionType type) {
+    // ALPN_CHANGES_BEGIN
+    // Adds the encoded extensions of a template, indexed
+    // as if its extensions had been added one by one.
+    void add(ClientHelloTemplates.Template template) {
+        checkWritable();
+        if (extensions.isEmpty()) {
+            extensions = new ArrayList<HelloExtension>();
+        }
+        extensions.add(template);
+        for (HelloExtension ext : template.extensions()) {
+            index(ext);
+        }
+        encodedLength = -1;
+    }
+
+    // Received extensions are only read; in lazy mode,
+    // they are not even in the list of extensions.
+    private void checkWritable() {
+        if (raw != null) {
+            throw new IllegalStateException(
+                    "Cannot add to lazily decoded received extensions");
+        }
+    }
+
+    private void index(HelloExtension ext) {
+        ExtensionType type = ext.type;
+        presence |= ExtensionType.mask(type);
+        if (type.index >= 0) {
+            if (slots == null) {
+                slots = new HelloExtension[
+                        ExtensionType.knownExtensions.size()];
+            }
+            if (slots[type.index] == null) {
+                slots[type.index] = ext;
+            }
+        }
+    }
+
+    // Returns the presence bits of the types of the extensions,
+    // to check the types with a single mask operation.
+    long presence() {
+        return presence;
+    }
+
+    HelloExtension get(ExtensionType type) throws IOException {
+        if (raw != null) {
+            int position = -1;
+            if (type.index >= 0) {
+                position = positions[type.index] - 1;
+            } else if ((presence & ExtensionType.UNKNOWN_MASK) != 0) {
+                for (int i = 0; i < rawTypes.length; ++i) {
+                    if (rawTypes[i] == type) {
+                        position = i;
+                        break;
+                    }
+                }
+            }
+            return position < 0 ? null : decode(position);
+        }
+        if (type.index >= 0) {
+            return slots == null ? null : slots[type.index];
+        }
+        if ((presence & ExtensionType.UNKNOWN_MASK) == 0) {
+            return null;
+        }
         for (HelloExtension ext : extensions) {
             if (ext.type == type) {
                 return ext;
@@ -123,6 +442,7 @@ final class HelloExtensions {
         }
         return null;
     }
+    // ALPN_CHANGES_END
 
     int length() {
         if (encodedLength >= 0) {
@@ -144,6 +464,9 @@ final class HelloExtensions {
         if (length == 0) {
             return;
         }
+        // ALPN_CHANGES_BEGIN
+        decodeAll();
+        // ALPN_CHANGES_END
         s.putInt16(length - 2);
         for (HelloExtension ext : extensions) {
             ext.send(s);
@@ -151,8 +474,69 @@ final class HelloExtensions {
     }
 
     void print(PrintStream s) throws IOException {
+        // ALPN_CHANGES_BEGIN
+        decodeAll();
+        // ALPN_CHANGES_END
         for (HelloExtension ext : extensions) {
             s.println(ext.toString());
         }
     }
+
+    // ALPN_CHANGES_BEGIN
+    // Reads a single extension from the retained extensions block.
+    static class ExtensionInStream extends HandshakeInStream {
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+        private int mark;
+
+        ExtensionInStream(byte[] bytes, int offset, int length) {
+            super(null);
+            this.bytes = bytes;
+            this.position = offset;
+            this.mark = offset;
+            this.limit = offset + length;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= limit) {
+                throw new SSLException("Unexpected end of handshake data");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len > limit - position) {
+                throw new SSLException("Unexpected end of handshake data");
+            }
+            System.arraycopy(bytes, position, b, off, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, limit - position));
+            position += (int)skipped;
+            return skipped;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public void reset() {
+            position = mark;
+        }
+    }
+    // ALPN_CHANGES_END
 }
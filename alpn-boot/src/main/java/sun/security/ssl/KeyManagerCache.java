@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+package sun.security.ssl;
+
+import java.security.AccessController;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import sun.security.action.GetIntegerAction;
+
+/**
+ * <p>Caches of the server aliases, private keys and certificate chains
+ * chosen by the key managers of {@link SSLContext}s.</p>
+ * <p>Key managers backed by PKCS#11 tokens or key stores may be slow, and
+ * may lock, to choose an alias and to return its key and chain. When the
+ * cache is enabled for a context, the choice made for a key algorithm and
+ * the server names requested by the client is reused by the later server
+ * handshakes of that context with the same algorithm and server names;
+ * only the check of the curve of EC certificates against the curves
+ * supported by the client is done for each handshake.</p>
+ * <p>The cache is disabled by default, because a key manager may choose
+ * depending on other properties of the connection, such as its port.
+ * It must be invalidated with {@link #invalidate(SSLContext)} when the
+ * key manager starts to choose differently, for example when certificates
+ * are rotated.</p>
+ * <p>The caches are bounded by the {@code org.eclipse.jetty.alpn.cacheSize}
+ * system property (default 64 entries per context); when a cache is full,
+ * the choices that were not used recently are evicted, so that clients
+ * requesting many distinct server names do not fill it for good. The
+ * contexts are weakly referenced.</p>
+ */
+public final class KeyManagerCache
+{
+    private static final int maxSize = AccessController.doPrivileged(
+            new GetIntegerAction("org.eclipse.jetty.alpn.cacheSize", 64));
+
+    private static final WeakIdentityMap<SSLSessionContext, ClockCache<Key, Resolution>> caches = new WeakIdentityMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private KeyManagerCache()
+    {
+    }
+
+    /**
+     * <p>Enables the cache for the server handshakes of the given context.</p>
+     *
+     * @param context the SSL context
+     */
+    public static void enable(SSLContext context)
+    {
+        SSLSessionContext key = context.getServerSessionContext();
+        synchronized (caches)
+        {
+            if (caches.get(key) == null)
+                caches.put(key, new ClockCache<Key, Resolution>(maxSize));
+        }
+    }
+
+    /**
+     * <p>Disables the cache for the server handshakes of the given context, and clears it.</p>
+     *
+     * @param context the SSL context
+     */
+    public static void disable(SSLContext context)
+    {
+        caches.remove(context.getServerSessionContext());
+    }
+
+    /**
+     * <p>Clears the cache of the given context, so that its key manager
+     * is asked again by the next server handshakes.</p>
+     *
+     * @param context the SSL context
+     */
+    public static void invalidate(SSLContext context)
+    {
+        ClockCache<Key, Resolution> cache = caches.get(context.getServerSessionContext());
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * @param context the server session context of the handshake
+     * @return the cache of the given context, or null if it is not enabled
+     */
+    static ClockCache<Key, Resolution> cache(SSLSessionContext context)
+    {
+        return caches.get(context);
+    }
+
+    /**
+     * @param cache the cache of the context
+     * @param key the key algorithm and server names of the handshake
+     * @return the cached resolution, or null
+     */
+    static Resolution get(ClockCache<Key, Resolution> cache, Key key)
+    {
+        Resolution resolution = cache.get(key);
+        if (resolution != null)
+            hits.increment();
+        else
+            misses.increment();
+        return resolution;
+    }
+
+    static void put(ClockCache<Key, Resolution> cache, Key key, Resolution resolution)
+    {
+        cache.put(key, resolution);
+    }
+
+    /**
+     * @param algorithm the key algorithm, as passed to the key manager
+     * @param serverNames the server names requested by the client
+     * @return the key of the resolution
+     */
+    static Key key(String algorithm, List<SNIServerName> serverNames)
+    {
+        return new Key(algorithm, serverNames);
+    }
+
+    /**
+     * @return the number of handshakes that found the alias, key and chain in the cache
+     */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of handshakes that asked the key manager
+     */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    static final class Key
+    {
+        private final String algorithm;
+        private final List<SNIServerName> serverNames;
+
+        private Key(String algorithm, List<SNIServerName> serverNames)
+        {
+            this.algorithm = algorithm;
+            this.serverNames = serverNames;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key that = (Key)obj;
+            return algorithm.equals(that.algorithm) && Objects.equals(serverNames, that.serverNames);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return algorithm.hashCode() * 31 + Objects.hashCode(serverNames);
+        }
+    }
+
+    /**
+     * <p>The alias, private key and certificate chain chosen for a key algorithm.</p>
+     */
+    static final class Resolution
+    {
+        /**
+         * The key manager has no usable alias for the key algorithm.
+         */
+        static final Resolution NONE = new Resolution(null, null, null, 0);
+
+        final String alias;
+        final PrivateKey privateKey;
+        final X509Certificate[] certs;
+        // The id of the curve of EC certificates, otherwise 0.
+        final int curveId;
+
+        Resolution(String alias, PrivateKey privateKey, X509Certificate[] certs, int curveId)
+        {
+            this.alias = alias;
+            this.privateKey = privateKey;
+            this.certs = certs;
+            this.curveId = curveId;
+        }
+    }
+}
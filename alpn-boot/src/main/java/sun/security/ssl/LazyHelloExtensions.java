@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+/**
+ * <p>The lazy decoding mode of the extensions of received hello messages.</p>
+ * <p>In lazy mode, only the framing of the received extensions is checked
+ * when a ClientHello or a ServerHello is parsed; each extension is decoded
+ * the first time the handshake asks for it, so extensions that the handshake
+ * does not use, for example ALPN without a provider, are never decoded.</p>
+ * <p>Both modes check, with the same alerts, when the message is parsed:</p>
+ * <ul>
+ * <li>the type and length of each extension, and the total length;</li>
+ * <li>the length prefix of the data of the supported extensions;</li>
+ * <li>the number of extensions, and duplicate types.</li>
+ * </ul>
+ * <p>Other errors in the data of an extension, for example an empty ALPN
+ * protocol name, are reported with the same alerts as in eager mode, but
+ * when the extension is first decoded; they are not reported if the
+ * extension is never decoded.</p>
+ * <p>Lazy mode is enabled with the {@code org.eclipse.jetty.alpn.lazyExtensions}
+ * system property or with {@link #setEnabled(boolean)}, and applies to the
+ * messages parsed afterwards.</p>
+ */
+public final class LazyHelloExtensions
+{
+    private static volatile boolean enabled =
+            Debug.getBooleanProperty("org.eclipse.jetty.alpn.lazyExtensions", false);
+
+    private LazyHelloExtensions()
+    {
+    }
+
+    /**
+     * @return whether received hello extensions are decoded lazily
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param enabled whether received hello extensions are decoded lazily
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        LazyHelloExtensions.enabled = enabled;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * <p>A received extension that this implementation does not support.</p>
+ * <p>Unlike {@code UnknownExtension}, the data is not copied: it is either
+ * a view onto bytes that are retained anyway, or not retained at all when
+ * nobody needs it, in which case only the type and length are known.</p>
+ */
+final class RawExtension extends HelloExtension
+{
+    private final byte[] bytes;
+    private final int offset;
+    private final int dataLength;
+
+    private RawExtension(ExtensionType type, byte[] bytes, int offset, int length)
+    {
+        super(type);
+        this.bytes = bytes;
+        this.offset = offset;
+        this.dataLength = length;
+    }
+
+    /**
+     * <p>Reads the extension data only if a handler is registered
+     * for the extension type, otherwise skips it.</p>
+     */
+    static RawExtension read(HandshakeInStream input, ExtensionType type, int length) throws IOException
+    {
+        if (type.handler != null)
+        {
+            byte[] bytes = new byte[length];
+            input.read(bytes, 0, length);
+            return new RawExtension(type, bytes, 0, length);
+        }
+        if (input.skip(length) != length)
+            throw new SSLException("Unexpected end of handshake data");
+        return new RawExtension(type, null, 0, length);
+    }
+
+    /**
+     * @return a view onto the given bytes, that must not be modified
+     */
+    static RawExtension view(ExtensionType type, byte[] bytes, int offset, int length)
+    {
+        return new RawExtension(type, bytes, offset, length);
+    }
+
+    /**
+     * @return a read-only view of the extension data, or null if the data was skipped
+     */
+    ByteBuffer data()
+    {
+        return bytes == null ? null : ByteBuffer.wrap(bytes, offset, dataLength).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    int length()
+    {
+        return 2 + 2 + dataLength;
+    }
+
+    @Override
+    void send(HandshakeOutStream out) throws IOException
+    {
+        if (bytes == null)
+            throw new SSLException("Data of extension " + type + " was not retained");
+        out.putInt16(type.id);
+        out.putInt16(dataLength);
+        out.write(bytes, offset, dataLength);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Unsupported extension %s, %d bytes%s", type, dataLength, bytes == null ? " skipped" : "");
+    }
+}
@@ -50,7 +50,13 @@ import sun.security.ssl.SignatureAndHashAlgorithm.*;
 import static sun.security.ssl.CipherSuite.KeyExchange.*;
 
 // ALPN_CHANGES_BEGIN
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.eclipse.jetty.alpn.ALPN;
+import sun.security.action.GetLongAction;
 // ALPN_CHANGES_END
 
 /**
@@ -69,6 +75,10 @@ final class ServerHandshaker extends Handshaker {
     // our authentication info
     private X509Certificate[]   certs;
     private PrivateKey          privateKey;
+    // ALPN_CHANGES_BEGIN
+    // The alias of certs, the key of their encoded Certificate message.
+    private String              certsAlias;
+    // ALPN_CHANGES_END
 
     private Object              serviceCreds;
 
@@ -99,6 +109,23 @@ final class ServerHandshaker extends Handshaker {
     // client supported elliptic curves
     private EllipticCurvesExtension requestedCurves;
 
+    // ALPN_CHANGES_BEGIN
+    // The ALPN provider attached to this handshake via ALPNProviders,
+    // otherwise looked up at most once from the ALPN registry
+    // and then from the defaults of the SSL context.
+    // Engines create their handshaker in beginHandshake(), so the provider
+    // is taken here; sockets create it when they connect or are accepted,
+    // so the provider is taken when first needed, in startHandshake().
+    private ALPN.Provider alpnProvider = ALPNProviders.take();
+    private boolean alpnProviderResolved = alpnProvider != null;
+    // The protocol negotiated by this handshake, recorded in the session on completion.
+    private String alpnProtocol;
+
+    // How long the handshake blocks waiting for an ALPNAsyncServerSelector, in milliseconds.
+    private static final long alpnSelectTimeout = AccessController.doPrivileged(
+            new GetLongAction("org.eclipse.jetty.alpn.selectTimeout", 1000));
+    // ALPN_CHANGES_END
+
     // the preferable signature algorithm used by ServerKeyExchange message
     SignatureAndHashAlgorithm preferableSignatureAlgorithm;
 
@@ -199,6 +226,55 @@ final class ServerHandshaker extends Handshaker {
         doClientAuth = clientAuth;
     }
 
+    // ALPN_CHANGES_BEGIN
+    private ALPN.ServerProvider alpnProvider()
+    {
+        if (!alpnProviderResolved)
+        {
+            alpnProvider = ALPNProviders.take();
+            if (alpnProvider == null)
+                alpnProvider = conn != null ? ALPNProviders.lookup(conn) : ALPNProviders.lookup(engine);
+            if (alpnProvider == null)
+                alpnProvider = ALPNProviders.getDefaultProvider(sslContext.engineGetServerSessionContext());
+            alpnProviderResolved = true;
+        }
+        return (ALPN.ServerProvider)alpnProvider;
+    }
+
+    private static boolean alpnOffered(ALPNExtension offered, String protocol)
+    {
+        ALPNProtocol known = ALPNProtocol.forName(protocol);
+        return known != null ? offered.indexOf(known) >= 0 : offered.getProtocols().contains(protocol);
+    }
+
+    // Blocks the thread that processes the ClientHello, see ALPNAsyncServerSelector.
+    private static String awaitProtocol(CompletionStage<String> selection) throws Exception
+    {
+        CompletableFuture<String> future = selection.toCompletableFuture();
+        try
+        {
+            return future.get(alpnSelectTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException x)
+        {
+            // The handshake fails, so the selection is not needed anymore.
+            future.cancel(true);
+            throw x;
+        }
+        catch (InterruptedException x)
+        {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw x;
+        }
+        catch (ExecutionException x)
+        {
+            Throwable cause = x.getCause();
+            throw cause instanceof Exception ? (Exception)cause : x;
+        }
+    }
+    // ALPN_CHANGES_END
+
     /*
      * This routine handles all the server side handshake messages, one at
      * a time.  Given the message type (and in some cases the pending cipher
@@ -217,12 +293,20 @@ final class ServerHandshaker extends Handshaker {
 
         switch (type) {
             case HandshakeMessage.ht_client_hello:
+                // ALPN_CHANGES_BEGIN
+                try {
+                // ALPN_CHANGES_END
                 ClientHello ch = new ClientHello(input, message_len);
                 handshakeState.update(ch, resumingSession);
                 /*
                  * send it off for processing.
                  */
                 this.clientHello(ch);
+                // ALPN_CHANGES_BEGIN
+                } catch (SSLAlertException x) {
+                    fatalSE(x.alert, x.getMessage(), x);
+                }
+                // ALPN_CHANGES_END
                 break;
 
             case HandshakeMessage.ht_certificate:
@@ -868,49 +952,82 @@ final class ServerHandshaker extends Handshaker {
         }
 
         // ALPN_CHANGES_BEGIN
+        try
+        {
+            mesg.extensions.handle(conn != null ? conn : engine);
+        }
+        catch (Throwable x)
+        {
+            fatalSE(Alerts.alert_handshake_failure, "Could not handle extension", x);
+        }
+
         if (isInitialHandshake)
         {
-            ALPN.ServerProvider provider = (ALPN.ServerProvider)(conn != null ? ALPN.get(conn) : ALPN.get(engine));
+            ALPN.ServerProvider provider = alpnProvider();
             Object ssl = conn != null ? conn : engine;
             if (provider != null)
             {
                 ALPNExtension extension = (ALPNExtension)mesg.extensions.get(ExtensionType.EXT_ALPN);
                 if (extension != null)
                 {
-                    List<String> protocols = extension.getProtocols();
-                    if (ALPN.debug)
-                        System.err.println("[S] ALPN protocols " + protocols + " received from client for " + ssl);
+                    ALPNEvents.event(ALPNEvents.Type.OFFERED, false, ssl, extension);
                     try
                     {
-                        String protocol = provider.select(protocols);
-                        if (ALPN.debug)
-                            System.err.println("[S] ALPN protocol '" + protocol + "' selected for " + ssl);
-                        if (protocol != null)
+                        String protocol = null;
+                        ALPNExtension selected = null;
+                        String resumed = resumingSession && provider instanceof ALPNResumingServerProvider ?
+                                ALPNSessions.getProtocol(session) : null;
+                        if (resumed != null && alpnOffered(extension, resumed))
+                        {
+                            protocol = resumed;
+                            selected = ALPNCache.serverExtension(protocol);
+                            ((ALPNResumingServerProvider)provider).resumed(protocol);
+                        }
+                        else if (provider instanceof ALPNServerSelector)
+                        {
+                            int index = ((ALPNServerSelector)provider).select(extension);
+                            // Reported with no_application_protocol below.
+                            if (index >= extension.size())
+                                throw new SSLException("Invalid ALPN protocol index " + index + ", offered " + extension.size() + " protocols");
+                            if (index >= 0)
+                                selected = ALPNCache.serverExtension(extension, index);
+                        }
+                        else if (provider instanceof ALPNAsyncServerSelector)
                         {
-                            m1.extensions.add(new ALPNExtension(Arrays.asList(protocol)));
+                            // For SSLEngine this runs in a delegated task,
+                            // so waiting does not block the I/O thread.
+                            protocol = awaitProtocol(((ALPNAsyncServerSelector)provider).selectAsync(extension.getProtocols()));
+                            if (protocol != null)
+                                selected = ALPNCache.serverExtension(protocol);
                         }
                         else
                         {
-                            if (ALPN.debug)
-                                System.err.println("[S] ALPN not sent for " + ssl);
+                            protocol = provider.select(extension.getProtocols());
+                            if (protocol != null)
+                                selected = ALPNCache.serverExtension(protocol);
+                        }
+                        ALPNEvents.event(ALPNEvents.Type.SELECTED, false, ssl, protocol != null ? protocol : selected);
+                        if (selected != null)
+                        {
+                            alpnProtocol = selected.getProtocol(0);
+                            m1.extensions.add(selected);
                         }
                     }
                     catch (Throwable x)
                     {
+                        ALPNEvents.event(ALPNEvents.Type.FAILURE, false, ssl, x);
                         fatalSE(Alerts.alert_no_application_protocol, "Could not negotiate application protocol", x);
                     }
                 }
                 else
                 {
-                    if (ALPN.debug)
-                        System.err.println("[S] ALPN not received for " + ssl);
+                    ALPNEvents.event(ALPNEvents.Type.UNSUPPORTED, false, ssl, null);
                     provider.unsupported();
                 }
             }
             else
             {
-                if (ALPN.debug)
-                    System.err.println("[S] ALPN server provider not present for " + ssl);
+                ALPNEvents.event(ALPNEvents.Type.PROVIDER_MISSING, false, ssl, null);
             }
         }
         // ALPN_CHANGES_END
@@ -945,7 +1062,13 @@ final class ServerHandshaker extends Handshaker {
                 throw new RuntimeException("no certificates");
             }
 
-            CertificateMsg m2 = new CertificateMsg(certs);
+            // ALPN_CHANGES_BEGIN
+            // The chain only changes when the certificates are rotated,
+            // so its encoded message is reused by the next handshakes.
+            CertificateMessages.Encoded encoded =
+                    CertificateMessages.get(sslContext, certsAlias, certs);
+            CertificateMsg m2 = encoded.message();
+            // ALPN_CHANGES_END
 
             /*
              * Set local certs in the SSLSession, output
@@ -955,7 +1078,9 @@ final class ServerHandshaker extends Handshaker {
             if (debug != null && Debug.isOn("handshake")) {
                 m2.print(System.out);
             }
-            m2.write(output);
+            // ALPN_CHANGES_BEGIN
+            encoded.write(output);
+            // ALPN_CHANGES_END
             handshakeState.update(m2, resumingSession);
 
             // XXX has some side effects with OS TCP buffering,
@@ -978,6 +1103,13 @@ final class ServerHandshaker extends Handshaker {
          * to use short RSA keys, even when the key/cert encrypts OK.
          */
 
+        // ALPN_CHANGES_BEGIN
+        // For SSLEngine, the ClientHello is processed by a delegated task
+        // (see Handshaker.process_record()), so this signature, like the
+        // key generation in trySetCipherSuite(), runs wherever the
+        // application runs the tasks, for example in a crypto executor,
+        // and not in the thread that called unwrap().
+        // ALPN_CHANGES_END
         ServerKeyExchange m3;
         switch (keyExchange) {
         case K_RSA:
@@ -1130,23 +1262,61 @@ final class ServerHandshaker extends Handshaker {
      * the cipherSuite and keyExchange variables.
      */
     private void chooseCipherSuite(ClientHello mesg) throws IOException {
+        // ALPN_CHANGES_BEGIN
+        CipherSuiteList requested = mesg.getCipherSuites();
+        CipherSuiteList active = getActiveCipherSuites();
+        boolean clientAuthRequired =
+                doClientAuth == SSLEngineImpl.clauth_required;
+        CipherSuiteCandidates.Key key = CipherSuiteCandidates.key(
+                requested, active, preferLocalCipherSuites, clientAuthRequired);
+        CipherSuiteCandidates candidates = CipherSuiteCandidates.get(key);
+        if (candidates == null) {
+            candidates = candidates(requested, active, clientAuthRequired);
+            CipherSuiteCandidates.put(key, candidates);
+        }
+
+        // Only the checks that depend on the keys are done per handshake.
+        for (int i = 0; i < candidates.size(); ++i) {
+            CipherSuite suite = candidates.get(i);
+            if (trySetCipherSuite(suite)) {
+                if (debug != null && Debug.isOn("handshake")) {
+                    System.out.println((candidates.isLegacy(i) ?
+                            "Legacy" : "Standard") +
+                            " ciphersuite chosen: " + suite);
+                }
+                return;
+            }
+        }
+
+        fatalSE(Alerts.alert_handshake_failure, "no cipher suites in common");
+    }
+
+    // The cipher suites that may be negotiated, in the order they are tried.
+    private CipherSuiteCandidates candidates(CipherSuiteList requested,
+            CipherSuiteList active, boolean clientAuthRequired) {
+        // ALPN_CHANGES_END
         CipherSuiteList prefered;
         CipherSuiteList proposed;
         if (preferLocalCipherSuites) {
-            prefered = getActiveCipherSuites();
-            proposed = mesg.getCipherSuites();
+            prefered = active;
+            proposed = requested;
         } else {
-            prefered = mesg.getCipherSuites();
-            proposed = getActiveCipherSuites();
+            prefered = requested;
+            proposed = active;
         }
 
+        // ALPN_CHANGES_BEGIN
+        List<CipherSuite> standardSuites = new ArrayList<>();
+        // ALPN_CHANGES_END
         List<CipherSuite> legacySuites = new ArrayList<>();
         for (CipherSuite suite : prefered.collection()) {
             if (isNegotiable(proposed, suite) == false) {
                 continue;
             }
 
-            if (doClientAuth == SSLEngineImpl.clauth_required) {
+            // ALPN_CHANGES_BEGIN
+            if (clientAuthRequired) {
+            // ALPN_CHANGES_END
                 if ((suite.keyExchange == K_DH_ANON) ||
                     (suite.keyExchange == K_ECDH_ANON)) {
                     continue;
@@ -1158,26 +1328,17 @@ final class ServerHandshaker extends Handshaker {
                 continue;
             }
 
-            if (trySetCipherSuite(suite) == false) {
-                continue;
-            }
-
-            if (debug != null && Debug.isOn("handshake")) {
-                System.out.println("Standard ciphersuite chosen: " + suite);
-            }
-            return;
-        }
-
-        for (CipherSuite suite : legacySuites) {
-            if (trySetCipherSuite(suite)) {
-                if (debug != null && Debug.isOn("handshake")) {
-                    System.out.println("Legacy ciphersuite chosen: " + suite);
-                }
-                return;
-            }
+            // ALPN_CHANGES_BEGIN
+            standardSuites.add(suite);
         }
 
-        fatalSE(Alerts.alert_handshake_failure, "no cipher suites in common");
+        // The legacy cipher suites are only tried after the standard ones.
+        int standard = standardSuites.size();
+        standardSuites.addAll(legacySuites);
+        return new CipherSuiteCandidates(
+                standardSuites.toArray(new CipherSuite[standardSuites.size()]),
+                standard);
+        // ALPN_CHANGES_END
     }
 
     /**
@@ -1223,6 +1384,9 @@ final class ServerHandshaker extends Handshaker {
         // null out any existing references
         privateKey = null;
         certs = null;
+        // ALPN_CHANGES_BEGIN
+        certsAlias = null;
+        // ALPN_CHANGES_END
         dh = null;
         tempPrivateKey = null;
         tempPublicKey = null;
@@ -1551,7 +1715,9 @@ final class ServerHandshaker extends Handshaker {
             }
         }
 
-        dh = new DHCrypt(keySize, sslContext.getSecureRandom());
+        // ALPN_CHANGES_BEGIN
+        dh = DHKeyPool.take(sslContext, keySize);
+        // ALPN_CHANGES_END
     }
 
     // Setup the ephemeral ECDH parameters.
@@ -1566,7 +1732,9 @@ final class ServerHandshaker extends Handshaker {
             return false;
         }
 
-        ecdh = new ECDHCrypt(index, sslContext.getSecureRandom());
+        // ALPN_CHANGES_BEGIN
+        ecdh = ECDHKeyPool.take(sslContext, index);
+        // ALPN_CHANGES_END
         return true;
     }
 
@@ -1583,6 +1751,42 @@ final class ServerHandshaker extends Handshaker {
      * @return true if successful, false if not available or invalid
      */
     private boolean setupPrivateKeyAndChain(String algorithm) {
+        // ALPN_CHANGES_BEGIN
+        KeyManagerCache.Resolution resolution;
+        ClockCache<KeyManagerCache.Key, KeyManagerCache.Resolution> cache =
+                KeyManagerCache.cache(sslContext.engineGetServerSessionContext());
+        if (cache != null) {
+            KeyManagerCache.Key key = KeyManagerCache.key(algorithm,
+                    session.getRequestedServerNames());
+            resolution = KeyManagerCache.get(cache, key);
+            if (resolution == null) {
+                resolution = resolvePrivateKeyAndChain(algorithm);
+                KeyManagerCache.put(cache, key, resolution);
+            }
+        } else {
+            resolution = resolvePrivateKeyAndChain(algorithm);
+        }
+        if (resolution == KeyManagerCache.Resolution.NONE) {
+            return false;
+        }
+        // If the client sent a SupportedEllipticCurves ClientHello extension,
+        // check the curve of ECC certs against it.
+        int id = resolution.curveId;
+        if ((id > 0) && (requestedCurves != null) &&
+                !requestedCurves.contains(id)) {
+            return false;
+        }
+        this.privateKey = resolution.privateKey;
+        this.certs = resolution.certs;
+        this.certsAlias = resolution.alias;
+        return true;
+    }
+
+    // Asks the key manager for the key and chain of the given algorithm,
+    // and checks them; the result does not depend on the client's curves.
+    private KeyManagerCache.Resolution resolvePrivateKeyAndChain(
+            String algorithm) {
+        // ALPN_CHANGES_END
         X509ExtendedKeyManager km = sslContext.getX509KeyManager();
         String alias;
         if (conn != null) {
@@ -1590,40 +1794,40 @@ final class ServerHandshaker extends Handshaker {
         } else {
             alias = km.chooseEngineServerAlias(algorithm, null, engine);
         }
+        // ALPN_CHANGES_BEGIN
         if (alias == null) {
-            return false;
+            return KeyManagerCache.Resolution.NONE;
         }
         PrivateKey tempPrivateKey = km.getPrivateKey(alias);
         if (tempPrivateKey == null) {
-            return false;
+            return KeyManagerCache.Resolution.NONE;
         }
         X509Certificate[] tempCerts = km.getCertificateChain(alias);
         if ((tempCerts == null) || (tempCerts.length == 0)) {
-            return false;
+            return KeyManagerCache.Resolution.NONE;
         }
-        String keyAlgorithm = algorithm.split("_")[0];
+        int separator = algorithm.indexOf('_');
+        String keyAlgorithm = separator < 0 ?
+                algorithm : algorithm.substring(0, separator);
         PublicKey publicKey = tempCerts[0].getPublicKey();
         if ((tempPrivateKey.getAlgorithm().equals(keyAlgorithm) == false)
                 || (publicKey.getAlgorithm().equals(keyAlgorithm) == false)) {
-            return false;
+            return KeyManagerCache.Resolution.NONE;
         }
         // For ECC certs, check whether we support the EC domain parameters.
-        // If the client sent a SupportedEllipticCurves ClientHello extension,
-        // check against that too.
+        int id = 0;
         if (keyAlgorithm.equals("EC")) {
             if (publicKey instanceof ECPublicKey == false) {
-                return false;
+                return KeyManagerCache.Resolution.NONE;
             }
             ECParameterSpec params = ((ECPublicKey)publicKey).getParams();
-            int id = EllipticCurvesExtension.getCurveIndex(params);
-            if ((id <= 0) || !EllipticCurvesExtension.isSupported(id) ||
-                ((requestedCurves != null) && !requestedCurves.contains(id))) {
-                return false;
+            id = EllipticCurvesExtension.getCurveIndex(params);
+            if ((id <= 0) || !EllipticCurvesExtension.isSupported(id)) {
+                return KeyManagerCache.Resolution.NONE;
             }
         }
-        this.privateKey = tempPrivateKey;
-        this.certs = tempCerts;
-        return true;
+        return new KeyManagerCache.Resolution(alias, tempPrivateKey, tempCerts, id);
+        // ALPN_CHANGES_END
     }
 
     /**
@@ -1884,6 +2088,18 @@ final class ServerHandshaker extends Handshaker {
                 "%% Didn't cache non-resumable server session: "
                 + session);
         }
+
+        // ALPN_CHANGES_BEGIN
+        if (isInitialHandshake)
+        {
+            if (alpnProtocol != null)
+                ALPNSessions.setProtocol(session, alpnProtocol);
+            if (conn != null)
+                ALPNProviders.purge(conn);
+            else
+                ALPNProviders.purge(engine);
+        }
+        // ALPN_CHANGES_END
     }
 
     /*
@@ -1923,11 +2139,31 @@ final class ServerHandshaker extends Handshaker {
     }
 
 
+    // ALPN_CHANGES_BEGIN
+    // Counts the alerts that the handshake sends through these methods.
+    // Alerts that the engine or the socket send themselves, for example
+    // for record layer errors, are not counted.
+    @Override
+    void fatalSE(byte b, String diagnostic, Throwable cause) throws IOException {
+        Alerts.sent(Alerts.alert_fatal, b);
+        super.fatalSE(b, diagnostic, cause);
+    }
+
+    @Override
+    void warningSE(byte b) {
+        Alerts.sent(Alerts.alert_warning, b);
+        super.warningSE(b);
+    }
+    // ALPN_CHANGES_END
+
     /*
      * Fault detected during handshake.
      */
     @Override
     void handshakeAlert(byte description) throws SSLProtocolException {
+        // ALPN_CHANGES_BEGIN
+        Alerts.received(Alerts.alert_warning, description);
+        // ALPN_CHANGES_END
 
         String message = Alerts.alertDescription(description);
 
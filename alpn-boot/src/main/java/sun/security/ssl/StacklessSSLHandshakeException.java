@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * <p>A {@link SSLHandshakeException} without stack trace, for the alerts
+ * that are usually caused by the peer: {@code handshake_failure},
+ * {@code unrecognized_name} and {@code no_application_protocol}.</p>
+ * <p>Clients and scanners that fail the handshake are common, and filling
+ * the stack trace of an exception per failed handshake can cost more than
+ * the handshake itself. The stack trace would only show the handshake code
+ * anyway; the alert and the reason are kept.</p>
+ * <p>These exceptions are only used when enabled, with the
+ * {@code org.eclipse.jetty.alpn.stacklessAlerts} system property
+ * or with {@link #setEnabled(boolean)}.</p>
+ */
+public final class StacklessSSLHandshakeException extends SSLHandshakeException
+{
+    private static volatile boolean enabled =
+            Debug.getBooleanProperty("org.eclipse.jetty.alpn.stacklessAlerts", false);
+
+    private final byte alert;
+
+    StacklessSSLHandshakeException(byte alert, String reason)
+    {
+        super(reason);
+        this.alert = alert;
+    }
+
+    /**
+     * @return the description of the alert
+     */
+    public int getAlert()
+    {
+        return alert & 0xFF;
+    }
+
+    /**
+     * @return the name of the alert, such as {@code handshake_failure}
+     */
+    public String getAlertName()
+    {
+        return Alerts.alertDescription(alert);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return this;
+    }
+
+    /**
+     * @return whether peer-caused alerts are reported with exceptions without stack trace
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param enabled whether peer-caused alerts are reported with exceptions without stack trace
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        StacklessSSLHandshakeException.enabled = enabled;
+    }
+
+    // Whether the given alert is reported without stack trace.
+    static boolean isStackless(byte alert)
+    {
+        if (!enabled)
+            return false;
+        switch (alert)
+        {
+            case Alerts.alert_handshake_failure:
+            case Alerts.alert_unrecognized_name:
+            case Alerts.alert_no_application_protocol:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014, Mort Bay Consulting Pty. Ltd. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Mort Bay Consulting designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Mort Bay Consulting in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ */
+
+package sun.security.ssl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A concurrent map with weakly referenced keys compared by identity.</p>
+ * <p>Entries whose key has been garbage collected are removed by the
+ * thread that next accesses the map, so no background thread is needed
+ * and the cost of the cleanup is proportional to the entries reclaimed,
+ * not to the size of the map.</p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class WeakIdentityMap<K, V>
+{
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+    private final LongAdder reclaimed = new LongAdder();
+
+    V get(K key)
+    {
+        expunge();
+        return map.get(new Lookup(key));
+    }
+
+    V put(K key, V value)
+    {
+        expunge();
+        return map.put(new Entry<>(key, queue), value);
+    }
+
+    V putIfAbsent(K key, V value)
+    {
+        expunge();
+        return map.putIfAbsent(new Entry<>(key, queue), value);
+    }
+
+    V remove(K key)
+    {
+        expunge();
+        return map.remove(new Lookup(key));
+    }
+
+    void clear()
+    {
+        map.clear();
+        expunge();
+    }
+
+    /**
+     * @return the values of the entries whose key has not been collected
+     */
+    List<V> values()
+    {
+        expunge();
+        List<V> values = new ArrayList<>();
+        for (Map.Entry<Object, V> entry : map.entrySet())
+        {
+            if (((Entry<?>)entry.getKey()).get() != null)
+                values.add(entry.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * @return the number of entries, including those whose key
+     * has been collected but that have not been reclaimed yet
+     */
+    int size()
+    {
+        return map.size();
+    }
+
+    /**
+     * @return the number of entries removed because their key was collected
+     */
+    long getReclaimed()
+    {
+        return reclaimed.sum();
+    }
+
+    private void expunge()
+    {
+        Reference<? extends K> reference;
+        while ((reference = queue.poll()) != null)
+        {
+            if (map.remove(reference) != null)
+                reclaimed.increment();
+        }
+    }
+
+    // Stored keys: once the referent is collected, an entry
+    // is only equal to itself, so that it can still be removed.
+    private static class Entry<K> extends WeakReference<K>
+    {
+        private final int hash;
+
+        private Entry(K key, ReferenceQueue<K> queue)
+        {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            Object key = get();
+            if (key == null)
+                return false;
+            if (obj instanceof Lookup)
+                return key == ((Lookup)obj).key;
+            return obj instanceof Entry && key == ((Entry<?>)obj).get();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    // Lookup keys: short-lived, to avoid creating a weak reference on every lookup.
+    private static class Lookup
+    {
+        private final Object key;
+
+        private Lookup(Object key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            return obj instanceof Entry && ((Entry<?>)obj).get() == key;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(key);
+        }
+    }
+}
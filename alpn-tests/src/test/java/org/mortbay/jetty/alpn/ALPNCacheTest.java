@@ -0,0 +1,155 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ALPNConstantClientProvider;
+
+public class ALPNCacheTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testClientOfferFollowsListModifiedInPlace() throws Exception
+    {
+        final List<String> protocols = new ArrayList<>(Arrays.asList("h2", "http/1.1"));
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return protocols;
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+            }
+        };
+        final AtomicReference<List<String>> offered = new AtomicReference<>();
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                offered.set(new ArrayList<>(protocols));
+                return protocols.get(0);
+            }
+        };
+
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        performEngineHandshake(sslContext, clientProvider, serverProvider, false);
+        Assert.assertEquals(Arrays.asList("h2", "http/1.1"), offered.get());
+
+        protocols.set(0, "spdy/3.1");
+        performEngineHandshake(sslContext, clientProvider, serverProvider, false);
+        Assert.assertEquals(Arrays.asList("spdy/3.1", "http/1.1"), offered.get());
+    }
+
+    @Test
+    public void testEqualConstantClientProvidersAreAskedOnceEach() throws Exception
+    {
+        final AtomicInteger asked = new AtomicInteger();
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        for (int i = 0; i < 2; ++i)
+        {
+            EqualConstantClientProvider clientProvider = new EqualConstantClientProvider(asked);
+            performEngineHandshake(sslContext, clientProvider, null, false);
+            performEngineHandshake(sslContext, clientProvider, null, false);
+        }
+        Assert.assertEquals(2, asked.get());
+    }
+
+    @Test
+    public void testConstantClientProvidersAreNotRetained() throws Exception
+    {
+        EqualConstantClientProvider clientProvider = new EqualConstantClientProvider(new AtomicInteger());
+        performEngineHandshake(SSLSupport.newSSLContext(), clientProvider, null, false);
+        WeakReference<ALPN.ClientProvider> reference = new WeakReference<ALPN.ClientProvider>(clientProvider);
+        clientProvider = null;
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (reference.get() != null && System.nanoTime() < end)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(reference.get());
+    }
+
+    // All the instances are equal, and must still be asked for their protocols.
+    private static class EqualConstantClientProvider implements ALPNConstantClientProvider
+    {
+        private final AtomicInteger asked;
+
+        private EqualConstantClientProvider(AtomicInteger asked)
+        {
+            this.asked = asked;
+        }
+
+        @Override
+        public List<String> protocols()
+        {
+            asked.incrementAndGet();
+            return Arrays.asList("h2", "http/1.1");
+        }
+
+        @Override
+        public void unsupported()
+        {
+        }
+
+        @Override
+        public void selected(String protocol)
+        {
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof EqualConstantClientProvider;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ALPNEventLog;
+import sun.security.ssl.ALPNEventRenderer;
+import sun.security.ssl.ALPNEventSink;
+import sun.security.ssl.ALPNEvents;
+
+public class ALPNEventLogTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testEventLog() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        ALPNEventLog log = new ALPNEventLog(16);
+        ALPNEvents.setSink(log);
+        try
+        {
+            performEngineHandshake(sslContext, clientProvider(), serverProvider(), true);
+        }
+        finally
+        {
+            ALPNEvents.setSink(null);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ALPNEventRenderer renderer = new ALPNEventRenderer(new PrintStream(buffer, true, "UTF-8"));
+        Assert.assertEquals(4, log.drain(renderer));
+        Assert.assertEquals(0, log.getLost());
+        String[] events = lines(buffer);
+        Assert.assertEquals(4, events.length);
+        Assert.assertTrue(events[0], events[0].startsWith("[C] ALPN protocols [h2, http/1.1] offered"));
+        Assert.assertTrue(events[1], events[1].startsWith("[S] ALPN protocols [h2, http/1.1] received"));
+        Assert.assertTrue(events[2], events[2].startsWith("[S] ALPN protocol 'http/1.1' selected"));
+        Assert.assertTrue(events[3], events[3].startsWith("[C] ALPN protocol 'http/1.1' selected by server"));
+
+        // Drained events are not passed again.
+        buffer.reset();
+        Assert.assertEquals(0, log.drain(renderer));
+        Assert.assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testDebugOutputFollowsSystemErr() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(buffer, true, "UTF-8"));
+        try
+        {
+            ALPN.debug = true;
+            performEngineHandshake(sslContext, clientProvider(), serverProvider(), true);
+        }
+        finally
+        {
+            ALPN.debug = false;
+            System.setErr(err);
+        }
+
+        String output = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(output, output.contains("[C] ALPN protocols [h2, http/1.1] offered"));
+        Assert.assertTrue(output, output.contains("[S] ALPN protocol 'http/1.1' selected"));
+    }
+
+    @Test
+    public void testConcurrentEventsAreDrainedOrLost() throws Exception
+    {
+        final int writers = 4;
+        final int events = 100000;
+        // Small, so that events are overwritten and slots are contended.
+        final ALPNEventLog log = new ALPNEventLog(64);
+        final CyclicBarrier barrier = new CyclicBarrier(writers + 1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final long[] lastIndexes = new long[writers];
+        Arrays.fill(lastIndexes, -1);
+        final ALPNEventSink checker = new ALPNEventSink()
+        {
+            @Override
+            public void onEvent(long nanoTime, ALPNEvents.Type type, boolean client, Object connection, Object detail)
+            {
+                // The fields of each event must come from the same event.
+                int writer = (Integer)connection;
+                long index = (Long)detail;
+                Assert.assertEquals(writer * (long)events + index, nanoTime);
+                Assert.assertEquals(index % 2 == 0, client);
+                Assert.assertSame(ALPNEvents.Type.values()[(int)(index % ALPNEvents.Type.values().length)], type);
+                // Each writer's events are drained once, in order.
+                Assert.assertTrue(index > lastIndexes[writer]);
+                lastIndexes[writer] = index;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < writers; ++i)
+            {
+                final Integer writer = i;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        barrier.await();
+                        ALPNEvents.Type[] types = ALPNEvents.Type.values();
+                        for (long index = 0; index < events; ++index)
+                            log.onEvent(writer * (long)events + index, types[(int)(index % types.length)], index % 2 == 0, writer, index);
+                        return null;
+                    }
+                }));
+            }
+            Future<Long> drainer = executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    barrier.await();
+                    long drained = 0;
+                    while (writing.get())
+                        drained += log.drain(checker);
+                    return drained;
+                }
+            });
+
+            for (Future<?> future : futures)
+                future.get();
+            writing.set(false);
+            long drained = drainer.get() + log.drain(checker);
+
+            Assert.assertEquals(writers * (long)events, drained + log.getLost());
+            Assert.assertTrue(drained > 0);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ALPN.ClientProvider clientProvider()
+    {
+        return new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList("h2", "http/1.1");
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+            }
+        };
+    }
+
+    private static ALPN.ServerProvider serverProvider()
+    {
+        return new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(1);
+            }
+        };
+    }
+
+    private static String[] lines(ByteArrayOutputStream buffer)
+    {
+        String text = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        return text.isEmpty() ? new String[0] : text.split("\\r?\\n");
+    }
+}
@@ -0,0 +1,175 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ALPNExtensionTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testClientHelloALPNAllocation() throws Exception
+    {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation is not measurable", threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean)threadMXBean;
+        Assume.assumeTrue("Thread allocation is not measurable", allocationMXBean.isThreadAllocatedMemorySupported());
+        Assume.assumeTrue("Thread allocation measurement is disabled", allocationMXBean.isThreadAllocatedMemoryEnabled());
+
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        int nameLength = 100;
+        int count = 100;
+
+        // Warm up.
+        for (int i = 0; i < 20; ++i)
+        {
+            for (Selection selection : Selection.values())
+            {
+                measureClientHelloAllocation(sslContext, 1, nameLength, selection);
+                measureClientHelloAllocation(sslContext, count, nameLength, selection);
+            }
+        }
+
+        long[] perProtocol = new long[Selection.values().length];
+        for (Selection selection : Selection.values())
+        {
+            long small = Long.MAX_VALUE;
+            long large = Long.MAX_VALUE;
+            for (int i = 0; i < 5; ++i)
+            {
+                small = Math.min(small, measureClientHelloAllocation(sslContext, 1, nameLength, selection));
+                large = Math.min(large, measureClientHelloAllocation(sslContext, count, nameLength, selection));
+            }
+            perProtocol[selection.ordinal()] = (large - small) / (count - 1);
+        }
+
+        // The baseline is the cost of reading the wire bytes of a protocol,
+        // when the server has no provider and does not look at the protocols.
+        long baseline = perProtocol[Selection.NONE.ordinal()];
+        long lazy = perProtocol[Selection.LAZY.ordinal()] - baseline;
+        long eager = perProtocol[Selection.EAGER.ordinal()] - baseline;
+        String message = "Allocated per protocol: baseline " + baseline + ", lazy +" + lazy + ", eager +" + eager;
+
+        // Decoding a protocol name allocates at least its chars,
+        // so the measure is able to detect a decoded protocol.
+        Assert.assertTrue(message, eager >= 2 * nameLength);
+        // Protocols that are not asked for must not be decoded, nor copied.
+        Assert.assertTrue(message, lazy < 8);
+    }
+
+    private long measureClientHelloAllocation(SSLContext sslContext, int count, int nameLength, final Selection selection) throws Exception
+    {
+        final List<String> protocols = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+        {
+            StringBuilder builder = new StringBuilder(String.valueOf(i));
+            while (builder.length() < nameLength)
+                builder.append('x');
+            protocols.add(builder.toString());
+        }
+
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        ALPN.put(clientSSLEngine, new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return protocols;
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+            }
+        });
+        if (selection != Selection.NONE)
+        {
+            ALPN.put(serverSSLEngine, new ALPN.ServerProvider()
+            {
+                @Override
+                public void unsupported()
+                {
+                }
+
+                @Override
+                public String select(List<String> protocols)
+                {
+                    if (selection == Selection.EAGER)
+                    {
+                        for (String protocol : protocols)
+                            Assert.assertNotNull(protocol);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try
+        {
+            clientSSLEngine.beginHandshake();
+            serverSSLEngine.beginHandshake();
+
+            // Generate and write ClientHello
+            wrap(clientSSLEngine, decrypted, encrypted);
+
+            // Read the ClientHello, measuring the allocation.
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            long begin = threadMXBean.getThreadAllocatedBytes(threadId);
+            unwrap(serverSSLEngine, encrypted, decrypted);
+            return threadMXBean.getThreadAllocatedBytes(threadId) - begin;
+        }
+        finally
+        {
+            ALPN.remove(clientSSLEngine);
+            ALPN.remove(serverSSLEngine);
+        }
+    }
+
+    private enum Selection
+    {
+        // No server provider.
+        NONE,
+        // A server provider that does not look at the protocols.
+        LAZY,
+        // A server provider that decodes all the protocols.
+        EAGER
+    }
+}
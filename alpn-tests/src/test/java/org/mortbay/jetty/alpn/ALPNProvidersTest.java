@@ -0,0 +1,495 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ALPNProviders;
+
+public class ALPNProvidersTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testAttachedProviders() throws Exception
+    {
+        final String protocolName = "test";
+        final AtomicReference<String> selected = new AtomicReference<>();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                selected.set(protocol);
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(0);
+            }
+        };
+
+        performEngineHandshake(SSLSupport.newSSLContext(), clientProvider, serverProvider, true);
+        Assert.assertEquals(protocolName, selected.get());
+    }
+
+    @Test
+    public void testAttachedProvidersOnSockets() throws Exception
+    {
+        final String protocolName = "test";
+        final AtomicReference<String> selected = new AtomicReference<>();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                selected.set(protocol);
+            }
+        };
+        final AtomicReference<List<String>> offered = new AtomicReference<>();
+        final ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                offered.set(new ArrayList<>(protocols));
+                return protocols.get(0);
+            }
+        };
+
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        try (final SSLServerSocket acceptor = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket())
+        {
+            acceptor.bind(new InetSocketAddress("localhost", 0));
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try
+            {
+                Future<SSLSocket> server = executor.submit(new Callable<SSLSocket>()
+                {
+                    @Override
+                    public SSLSocket call() throws Exception
+                    {
+                        // The socket creates its handshaker when it is accepted.
+                        SSLSocket serverSSLSocket = (SSLSocket)acceptor.accept();
+                        serverSSLSocket.setSoTimeout(5000);
+                        ALPNProviders.startHandshake(serverSSLSocket, serverProvider);
+                        return serverSSLSocket;
+                    }
+                });
+
+                // The socket creates its handshaker when it connects.
+                try (SSLSocket clientSSLSocket = (SSLSocket)sslContext.getSocketFactory().createSocket("localhost", acceptor.getLocalPort()))
+                {
+                    clientSSLSocket.setSoTimeout(5000);
+                    ALPNProviders.startHandshake(clientSSLSocket, clientProvider);
+                    try (SSLSocket serverSSLSocket = server.get(5, TimeUnit.SECONDS))
+                    {
+                        Assert.assertNull(ALPN.get(serverSSLSocket));
+                    }
+                    Assert.assertNull(ALPN.get(clientSSLSocket));
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        Assert.assertEquals(Arrays.asList(protocolName), offered.get());
+        Assert.assertEquals(protocolName, selected.get());
+    }
+
+    @Test
+    public void testDefaultProviders() throws Exception
+    {
+        final String protocolName = "test";
+        final AtomicReference<String> selected = new AtomicReference<>();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                selected.set(protocol);
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(0);
+            }
+        };
+
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        ALPNProviders.setDefaultClientProvider(sslContext, clientProvider);
+        ALPNProviders.setDefaultServerProvider(sslContext, serverProvider);
+        try
+        {
+            for (int i = 0; i < 2; ++i)
+            {
+                selected.set(null);
+                performEngineHandshake(sslContext, null, null, false);
+                Assert.assertEquals(protocolName, selected.get());
+            }
+        }
+        finally
+        {
+            ALPNProviders.setDefaultClientProvider(sslContext, null);
+            ALPNProviders.setDefaultServerProvider(sslContext, null);
+        }
+        Assert.assertNull(ALPNProviders.getDefaultProvider(sslContext.getServerSessionContext()));
+    }
+
+    @Test
+    public void testRegisteredProvidersArePurged() throws Exception
+    {
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList("test");
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(0);
+            }
+        };
+
+        long purged = ALPNProviders.getPurgedProviders();
+        performEngineHandshake(SSLSupport.newSSLContext(), clientProvider, serverProvider, false);
+        Assert.assertEquals(2, ALPNProviders.getPurgedProviders() - purged);
+    }
+
+    @Test
+    public void testRegisteredProvidersAreReclaimed() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        // The provider does not reference the engines, see
+        // testRegisteredProvidersReferencingTheirEngine().
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return null;
+            }
+        };
+
+        long reclaimed = ALPNProviders.getReclaimedProviders();
+        int count = 16;
+        for (int i = 0; i < count; ++i)
+            ALPNProviders.put(sslContext.createSSLEngine(), serverProvider);
+
+        SSLEngine probe = sslContext.createSSLEngine();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ALPNProviders.getReclaimedProviders() - reclaimed < count && System.nanoTime() < end)
+        {
+            System.gc();
+            Thread.sleep(10);
+            // Accessing the registry reclaims the entries of collected engines.
+            ALPNProviders.get(probe);
+        }
+        Assert.assertTrue(ALPNProviders.getReclaimedProviders() - reclaimed >= count);
+    }
+
+    @Test
+    public void testRegisteredProvidersReferencingTheirEngine() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+
+        // The entries are purged when the handshake completes,
+        // and then nothing references the engines anymore.
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        EngineClientProvider clientProvider = new EngineClientProvider(clientSSLEngine);
+        ALPNProviders.put(clientSSLEngine, clientProvider);
+        ALPNProviders.put(serverSSLEngine, new EngineServerProvider(serverSSLEngine));
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+        clientSSLEngine.beginHandshake();
+        serverSSLEngine.beginHandshake();
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+        unwrap(clientSSLEngine, encrypted, decrypted);
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+        unwrap(clientSSLEngine, encrypted, decrypted);
+        Assert.assertEquals("h2", clientProvider.selected);
+        clientProvider = null;
+
+        Assert.assertNull(ALPNProviders.get(clientSSLEngine));
+        Assert.assertNull(ALPNProviders.get(serverSSLEngine));
+        WeakReference<SSLEngine> clientReference = new WeakReference<>(clientSSLEngine);
+        WeakReference<SSLEngine> serverReference = new WeakReference<>(serverSSLEngine);
+        clientSSLEngine = null;
+        serverSSLEngine = null;
+        awaitCollected(clientReference);
+        awaitCollected(serverReference);
+
+        // Without a completed handshake, the entry must be removed explicitly.
+        SSLEngine failedSSLEngine = sslContext.createSSLEngine();
+        ALPNProviders.put(failedSSLEngine, new EngineServerProvider(failedSSLEngine));
+        Assert.assertNotNull(ALPNProviders.remove(failedSSLEngine));
+        WeakReference<SSLEngine> failedReference = new WeakReference<>(failedSSLEngine);
+        failedSSLEngine = null;
+        awaitCollected(failedReference);
+    }
+
+    @Test
+    public void testAttachedProvidersChurn() throws Exception
+    {
+        final SSLContext sslContext = SSLSupport.newSSLContext();
+        final AtomicInteger selections = new AtomicInteger();
+        final ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList("h2", "http/1.1");
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                selections.incrementAndGet();
+            }
+        };
+        final ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(0);
+            }
+        };
+
+        int threads = 4;
+        final int iterations = 50;
+        for (final boolean attached : new boolean[]{false, true})
+        {
+            selections.set(0);
+            int registered = ALPNProviders.getRegisteredProviders();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; ++t)
+                {
+                    futures.add(executor.submit(new Callable<Void>()
+                    {
+                        @Override
+                        public Void call() throws Exception
+                        {
+                            for (int i = 0; i < iterations; ++i)
+                                performEngineHandshake(sslContext, clientProvider, serverProvider, attached);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+            // The handshakes left no provider registered.
+            Assert.assertTrue(ALPNProviders.getRegisteredProviders() <= registered);
+            Assert.assertEquals(threads * iterations, selections.get());
+        }
+    }
+
+    private static void awaitCollected(WeakReference<?> reference) throws Exception
+    {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (reference.get() != null && System.nanoTime() < end)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(reference.get());
+    }
+
+    private static class EngineClientProvider implements ALPN.ClientProvider
+    {
+        private final SSLEngine engine;
+        private volatile String selected;
+
+        private EngineClientProvider(SSLEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        @Override
+        public List<String> protocols()
+        {
+            Assert.assertTrue(engine.getUseClientMode());
+            return Arrays.asList("h2", "http/1.1");
+        }
+
+        @Override
+        public void unsupported()
+        {
+            Assert.fail();
+        }
+
+        @Override
+        public void selected(String protocol)
+        {
+            selected = protocol;
+        }
+    }
+
+    private static class EngineServerProvider implements ALPN.ServerProvider
+    {
+        private final SSLEngine engine;
+
+        private EngineServerProvider(SSLEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        @Override
+        public void unsupported()
+        {
+            Assert.fail();
+        }
+
+        @Override
+        public String select(List<String> protocols)
+        {
+            Assert.assertFalse(engine.getUseClientMode());
+            return protocols.get(0);
+        }
+    }
+}
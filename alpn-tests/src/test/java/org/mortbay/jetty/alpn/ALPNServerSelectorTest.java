@@ -0,0 +1,85 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLException;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ALPNExtension;
+import sun.security.ssl.ALPNServerSelector;
+import sun.security.ssl.AlertStatistics;
+
+public class ALPNServerSelectorTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testInvalidIndexIsRejected() throws Exception
+    {
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList("h2", "http/1.1");
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.fail();
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPNServerSelector()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public int select(ALPNExtension offered)
+            {
+                return offered.size();
+            }
+        };
+
+        AlertStatistics.Snapshot before = AlertStatistics.snapshot();
+        try
+        {
+            performEngineHandshake(SSLSupport.newSSLContext(), clientProvider, serverProvider, false);
+            Assert.fail();
+        }
+        catch (SSLException x)
+        {
+            // Expected
+        }
+        AlertStatistics.Snapshot after = AlertStatistics.snapshot();
+        // Alert no_application_protocol, sent once.
+        Assert.assertEquals(before.getSentFatal(120) + 1, after.getSentFatal(120));
+    }
+}
@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -32,6 +33,13 @@ import org.eclipse.jetty.alpn.ALPN;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import sun.security.ssl.ALPNCache;
+import sun.security.ssl.ALPNConstantClientProvider;
+import sun.security.ssl.ALPNExtension;
+import sun.security.ssl.ALPNProtocol;
+import sun.security.ssl.ALPNResumingServerProvider;
+import sun.security.ssl.ALPNServerSelector;
+import sun.security.ssl.ALPNSessions;
 
 public abstract class AbstractALPNTest<T>
 {
@@ -106,6 +114,211 @@ public abstract class AbstractALPNTest<T>
         performTLSClose(sslResult);
     }
 
+    @Test
+    public void testRegisteredProtocolIsDecodedToCanonicalName() throws Exception
+    {
+        // A protocol name that is equal, but not identical, to the canonical one.
+        final String protocolName = new String(ALPNProtocol.H2.getName());
+        final String unknownName = "unknown";
+        final CountDownLatch latch = new CountDownLatch(2);
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName, unknownName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.assertEquals(protocolName, protocol);
+                latch.countDown();
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                Assert.assertEquals(2, protocols.size());
+                Assert.assertSame(ALPNProtocol.H2.getName(), protocols.get(0));
+                Assert.assertEquals(unknownName, protocols.get(1));
+                latch.countDown();
+                return protocols.get(0);
+            }
+        };
+        SSLResult<T> sslResult = performTLSHandshake(null, clientProvider, serverProvider);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        performTLSClose(sslResult);
+    }
+
+    @Test
+    public void testServerSelectorSelectsFromBytes() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(2);
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(ALPNProtocol.HTTP_1_1.getName(), "unknown", ALPNProtocol.H2.getName());
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.assertEquals(ALPNProtocol.H2.getName(), protocol);
+                latch.countDown();
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPNServerSelector()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public int select(ALPNExtension offered)
+            {
+                Assert.assertEquals(3, offered.size());
+                Assert.assertNull(offered.getALPNProtocol(1));
+                Assert.assertEquals(-1, offered.indexOf(ALPNProtocol.SPDY_3_1));
+                latch.countDown();
+                return offered.indexOf(ALPNProtocol.H2);
+            }
+        };
+        SSLResult<T> sslResult = performTLSHandshake(null, clientProvider, serverProvider);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        performTLSClose(sslResult);
+    }
+
+    @Test
+    public void testServerExtensionIsCached() throws Exception
+    {
+        final String protocolName = "test";
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.assertEquals(protocolName, protocol);
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                return protocols.get(0);
+            }
+        };
+
+        long hits = ALPNCache.getServerHits();
+        long misses = ALPNCache.getServerMisses();
+        for (int i = 0; i < 2; ++i)
+        {
+            SSLResult<T> sslResult = performTLSHandshake(null, clientProvider, serverProvider);
+            performTLSClose(sslResult);
+        }
+        Assert.assertEquals(2, ALPNCache.getServerHits() - hits + ALPNCache.getServerMisses() - misses);
+        Assert.assertTrue(ALPNCache.getServerHits() > hits);
+    }
+
+    @Test
+    public void testConstantClientProviderIsAskedOnce() throws Exception
+    {
+        final String protocolName = "test";
+        final CountDownLatch latch = new CountDownLatch(1);
+        ALPN.ClientProvider clientProvider = new ALPNConstantClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                if (latch.getCount() == 0)
+                    Assert.fail();
+                latch.countDown();
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.assertEquals(protocolName, protocol);
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPN.ServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                Assert.assertEquals(Arrays.asList(protocolName), protocols);
+                return protocols.get(0);
+            }
+        };
+
+        long hits = ALPNCache.getClientHits();
+        for (int i = 0; i < 2; ++i)
+        {
+            SSLResult<T> sslResult = performTLSHandshake(null, clientProvider, serverProvider);
+            performTLSClose(sslResult);
+        }
+        Assert.assertEquals(0, latch.getCount());
+        Assert.assertTrue(ALPNCache.getClientHits() > hits);
+    }
+
     @Test
     public void testServerDoesNotSendALPN() throws Exception
     {
@@ -405,6 +618,71 @@ public abstract class AbstractALPNTest<T>
         performTLSClose(sslResult);
     }
 
+    @Test
+    public void testTLSSessionResumptionReusesProtocol() throws Exception
+    {
+        final String protocolName = "test";
+        final AtomicInteger selections = new AtomicInteger();
+        final AtomicInteger resumptions = new AtomicInteger();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                Assert.assertEquals(protocolName, protocol);
+            }
+        };
+        ALPN.ServerProvider serverProvider = new ALPNResumingServerProvider()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public String select(List<String> protocols)
+            {
+                selections.incrementAndGet();
+                return protocols.get(0);
+            }
+
+            @Override
+            public void resumed(String protocol)
+            {
+                Assert.assertEquals(protocolName, protocol);
+                resumptions.incrementAndGet();
+            }
+        };
+
+        SSLResult<T> sslResult = performTLSHandshake(null, clientProvider, serverProvider);
+        SSLSession clientSession1 = getSSLSession(sslResult, true);
+        SSLSession serverSession1 = getSSLSession(sslResult, false);
+        Assert.assertEquals(protocolName, ALPNSessions.getProtocol(clientSession1));
+        Assert.assertEquals(protocolName, ALPNSessions.getProtocol(serverSession1));
+        performTLSClose(sslResult);
+
+        sslResult = performTLSHandshake(sslResult, clientProvider, serverProvider);
+        Assert.assertSame(serverSession1, getSSLSession(sslResult, false));
+        Assert.assertEquals(1, selections.get());
+        Assert.assertEquals(1, resumptions.get());
+        Assert.assertEquals(protocolName, ALPNSessions.getProtocol(getSSLSession(sslResult, true)));
+
+        performTLSClose(sslResult);
+    }
+
     public static class SSLResult<S>
     {
         public SSLContext context;
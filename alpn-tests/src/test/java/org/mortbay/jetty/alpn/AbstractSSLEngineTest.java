@@ -0,0 +1,222 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import sun.security.ssl.ALPNProviders;
+
+/**
+ * <p>Base class for the tests that drive client and server {@link SSLEngine}s
+ * in the same thread.</p>
+ * <p>Debug logging is disabled while each test runs, because it allocates
+ * and decodes the protocols, and it is restored after the test.</p>
+ */
+public abstract class AbstractSSLEngineTest
+{
+    private boolean debug;
+
+    @Before
+    public void disableDebug() throws Exception
+    {
+        Assert.assertNull("ALPN classes must be in the bootclasspath.", ALPN.class.getClassLoader());
+        debug = ALPN.debug;
+        ALPN.debug = false;
+    }
+
+    @After
+    public void restoreDebug() throws Exception
+    {
+        ALPN.debug = debug;
+    }
+
+    protected void performEngineHandshake(SSLContext sslContext, ALPN.ClientProvider clientProvider, ALPN.ServerProvider serverProvider, boolean attached) throws Exception
+    {
+        performEngineHandshake(sslContext, clientProvider, serverProvider, attached, null);
+    }
+
+    protected void performEngineHandshake(SSLContext sslContext, ALPN.ClientProvider clientProvider, ALPN.ServerProvider serverProvider, boolean attached, ExecutorService serverTasks) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        // Null providers are neither attached nor registered.
+        if (attached)
+        {
+            ALPNProviders.beginHandshake(clientSSLEngine, clientProvider);
+            ALPNProviders.beginHandshake(serverSSLEngine, serverProvider);
+        }
+        else
+        {
+            if (clientProvider != null)
+                ALPN.put(clientSSLEngine, clientProvider);
+            if (serverProvider != null)
+                ALPN.put(serverSSLEngine, serverProvider);
+            clientSSLEngine.beginHandshake();
+            serverSSLEngine.beginHandshake();
+        }
+
+        try
+        {
+            wrap(clientSSLEngine, decrypted, encrypted);
+            unwrap(serverSSLEngine, encrypted, decrypted, serverTasks);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            unwrap(clientSSLEngine, encrypted, decrypted);
+            wrap(clientSSLEngine, decrypted, encrypted);
+            unwrap(serverSSLEngine, encrypted, decrypted, serverTasks);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            unwrap(clientSSLEngine, encrypted, decrypted);
+
+            Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, clientSSLEngine.getHandshakeStatus());
+            Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, serverSSLEngine.getHandshakeStatus());
+        }
+        finally
+        {
+            if (!attached)
+            {
+                ALPN.remove(clientSSLEngine);
+                ALPN.remove(serverSSLEngine);
+            }
+        }
+    }
+
+    // The client and the server have no cipher suite in common,
+    // so the server fails the handshake when it reads the ClientHello.
+    protected SSLException performFailedEngineHandshake(SSLContext sslContext) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        clientSSLEngine.setEnabledCipherSuites(new String[]{"TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA"});
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        serverSSLEngine.setEnabledCipherSuites(new String[]{"TLS_RSA_WITH_AES_128_CBC_SHA"});
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        clientSSLEngine.beginHandshake();
+        serverSSLEngine.beginHandshake();
+        wrap(clientSSLEngine, decrypted, encrypted);
+        try
+        {
+            unwrap(serverSSLEngine, encrypted, decrypted);
+            wrap(serverSSLEngine, decrypted, encrypted);
+        }
+        catch (SSLException x)
+        {
+            return x;
+        }
+        throw new AssertionError("Handshake did not fail");
+    }
+
+    // Returns the ClientHello record written by a client with the given provider.
+    protected byte[] clientHello(SSLContext sslContext, ALPN.ClientProvider clientProvider) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+        ALPNProviders.beginHandshake(clientSSLEngine, clientProvider);
+        wrap(clientSSLEngine, decrypted, encrypted);
+        byte[] bytes = new byte[encrypted.remaining()];
+        encrypted.get(bytes);
+        clientSSLEngine.closeOutbound();
+        return bytes;
+    }
+
+    protected static void wrap(SSLEngine sslEngine, ByteBuffer decrypted, ByteBuffer encrypted) throws Exception
+    {
+        encrypted.clear();
+        ByteBuffer tmp = ByteBuffer.allocate(encrypted.capacity());
+        while (true)
+        {
+            encrypted.clear();
+            SSLEngineResult result = sslEngine.wrap(decrypted, encrypted);
+            SSLEngineResult.Status status = result.getStatus();
+            if (status != SSLEngineResult.Status.OK && status != SSLEngineResult.Status.CLOSED)
+                throw new AssertionError(status.toString());
+            encrypted.flip();
+            tmp.put(encrypted);
+            if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+            {
+                tmp.flip();
+                encrypted.clear();
+                encrypted.put(tmp).flip();
+                return;
+            }
+        }
+    }
+
+    protected static void unwrap(SSLEngine sslEngine, ByteBuffer encrypted, ByteBuffer decrypted) throws Exception
+    {
+        unwrap(sslEngine, encrypted, decrypted, null);
+    }
+
+    protected static void unwrap(SSLEngine sslEngine, ByteBuffer encrypted, ByteBuffer decrypted, ExecutorService tasks) throws Exception
+    {
+        decrypted.clear();
+        while (true)
+        {
+            decrypted.clear();
+            SSLEngineResult result = sslEngine.unwrap(encrypted, decrypted);
+            SSLEngineResult.Status status = result.getStatus();
+            if (status != SSLEngineResult.Status.OK && status != SSLEngineResult.Status.CLOSED)
+                throw new AssertionError(status.toString());
+            SSLEngineResult.HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            {
+                if (tasks == null)
+                {
+                    sslEngine.getDelegatedTask().run();
+                }
+                else
+                {
+                    // Run the delegated tasks like a non-blocking server would,
+                    // then wait for them only to keep the test sequential.
+                    List<Future<?>> futures = new ArrayList<>();
+                    Runnable task;
+                    while ((task = sslEngine.getDelegatedTask()) != null)
+                        futures.add(tasks.submit(task));
+                    for (Future<?> future : futures)
+                        future.get();
+                }
+                handshakeStatus = sslEngine.getHandshakeStatus();
+            }
+            if (handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                return;
+        }
+    }
+}
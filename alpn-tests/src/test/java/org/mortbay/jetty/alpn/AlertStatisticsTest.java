@@ -0,0 +1,106 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.AlertStatistics;
+
+public class AlertStatisticsTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testAlertStatistics() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        AlertStatistics.Snapshot before = AlertStatistics.snapshot();
+        performFailedEngineHandshake(sslContext);
+        AlertStatistics.Snapshot after = AlertStatistics.snapshot();
+        Assert.assertEquals(before.getSentFatal(40) + 1, after.getSentFatal(40));
+
+        ObjectName name = AlertStatistics.registerMBean();
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            TabularData sentFatal = (TabularData)server.getAttribute(name, "SentFatal");
+            CompositeData handshakeFailure = sentFatal.get(new Object[]{"handshake_failure"});
+            Assert.assertNotNull(handshakeFailure);
+            Assert.assertTrue((Long)handshakeFailure.get("value") >= after.getSentFatal(40));
+        }
+        finally
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testReceivedFatalAlerts() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        clientSSLEngine.setEnabledCipherSuites(new String[]{"TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA"});
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        serverSSLEngine.setEnabledCipherSuites(new String[]{"TLS_RSA_WITH_AES_128_CBC_SHA"});
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        clientSSLEngine.beginHandshake();
+        serverSSLEngine.beginHandshake();
+        wrap(clientSSLEngine, decrypted, encrypted);
+        try
+        {
+            unwrap(serverSSLEngine, encrypted, decrypted);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            Assert.fail();
+        }
+        catch (SSLException x)
+        {
+            // Expected
+        }
+
+        // The server now writes its handshake_failure alert, that the client receives.
+        wrap(serverSSLEngine, decrypted, encrypted);
+        AlertStatistics.Snapshot before = AlertStatistics.snapshot();
+        try
+        {
+            unwrap(clientSSLEngine, encrypted, decrypted);
+            Assert.fail();
+        }
+        catch (SSLException x)
+        {
+            // Expected
+        }
+        AlertStatistics.Snapshot after = AlertStatistics.snapshot();
+        Assert.assertEquals(before.getReceivedFatal(40) + 1, after.getReceivedFatal(40));
+        // The client does not count the alert as sent.
+        Assert.assertEquals(before.getSentFatal(40), after.getSentFatal(40));
+    }
+}
@@ -0,0 +1,126 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.CertificateMessages;
+
+public class CertificateMessagesTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testCertificateMessageIsByteIdentical() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+
+        // The first handshake encodes the message, the second sends the cached bytes.
+        long misses = CertificateMessages.getMisses();
+        List<Certificate> chain = new ArrayList<>();
+        byte[] encoded = serverCertificateMessage(sslContext, chain);
+        Assert.assertEquals(misses + 1, CertificateMessages.getMisses());
+
+        long hits = CertificateMessages.getHits();
+        byte[] cached = serverCertificateMessage(sslContext, new ArrayList<Certificate>());
+        Assert.assertEquals(hits + 1, CertificateMessages.getHits());
+
+        // Encode the message independently, as defined by RFC 5246, 7.4.2.
+        ByteArrayOutputStream certificates = new ByteArrayOutputStream();
+        for (Certificate certificate : chain)
+        {
+            byte[] bytes = certificate.getEncoded();
+            putInt24(certificates, bytes.length);
+            certificates.write(bytes);
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(11);
+        putInt24(expected, certificates.size() + 3);
+        putInt24(expected, certificates.size());
+        certificates.writeTo(expected);
+
+        Assert.assertArrayEquals(expected.toByteArray(), encoded);
+        Assert.assertArrayEquals(encoded, cached);
+
+        // After invalidation, the message is encoded again.
+        CertificateMessages.invalidate(sslContext);
+        misses = CertificateMessages.getMisses();
+        Assert.assertArrayEquals(encoded, serverCertificateMessage(sslContext, new ArrayList<Certificate>()));
+        Assert.assertEquals(misses + 1, CertificateMessages.getMisses());
+    }
+
+    // Returns the Certificate message of the first flight of a server,
+    // and adds the certificates sent by the server to the given chain.
+    private byte[] serverCertificateMessage(SSLContext sslContext, List<Certificate> chain) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        ByteBuffer encrypted = ByteBuffer.allocate(serverSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(serverSSLEngine.getSession().getApplicationBufferSize());
+
+        clientSSLEngine.beginHandshake();
+        wrap(clientSSLEngine, decrypted, encrypted);
+        serverSSLEngine.beginHandshake();
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+        chain.addAll(Arrays.asList(serverSSLEngine.getHandshakeSession().getLocalCertificates()));
+        clientSSLEngine.closeOutbound();
+        serverSSLEngine.closeOutbound();
+
+        // The first flight is not encrypted: concatenate
+        // the handshake records, then walk the messages.
+        ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        while (encrypted.hasRemaining())
+        {
+            int type = encrypted.get() & 0xFF;
+            encrypted.getShort();
+            byte[] fragment = new byte[encrypted.getShort() & 0xFFFF];
+            encrypted.get(fragment);
+            if (type == 22)
+                handshake.write(fragment);
+        }
+        ByteBuffer messages = ByteBuffer.wrap(handshake.toByteArray());
+        while (messages.hasRemaining())
+        {
+            int start = messages.position();
+            int type = messages.get() & 0xFF;
+            int length = (messages.get() & 0xFF) << 16 | (messages.getShort() & 0xFFFF);
+            messages.position(messages.position() + length);
+            if (type == 11)
+                return Arrays.copyOfRange(messages.array(), start, messages.position());
+        }
+        throw new AssertionError("no Certificate message");
+    }
+
+    private static void putInt24(ByteArrayOutputStream output, int value)
+    {
+        output.write(value >> 16);
+        output.write(value >> 8);
+        output.write(value);
+    }
+}
@@ -0,0 +1,103 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.CipherSuiteCandidates;
+
+public class CipherSuiteCandidatesTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testCipherSuiteCandidatesAreCached() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        performEngineHandshake(sslContext, null, null, false);
+
+        long hits = CipherSuiteCandidates.getHits();
+        long misses = CipherSuiteCandidates.getMisses();
+        performEngineHandshake(sslContext, null, null, false);
+        Assert.assertEquals(hits + 1, CipherSuiteCandidates.getHits());
+        Assert.assertEquals(misses, CipherSuiteCandidates.getMisses());
+
+        // Different enabled cipher suites must not reuse the candidates.
+        performFailedEngineHandshake(sslContext);
+        Assert.assertEquals(misses + 1, CipherSuiteCandidates.getMisses());
+
+        // The server had different active cipher suites, so the previous candidates were dropped.
+        performEngineHandshake(sslContext, null, null, false);
+        Assert.assertEquals(misses + 2, CipherSuiteCandidates.getMisses());
+    }
+
+    @Test
+    public void testClientsCannotFillTheCache() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        SSLEngine sslEngine = sslContext.createSSLEngine();
+        sslEngine.setUseClientMode(true);
+        String[] suites = sslEngine.getEnabledCipherSuites();
+        int cacheSize = Integer.getInteger("org.eclipse.jetty.alpn.cacheSize", 64);
+
+        CipherSuiteCandidates.clear();
+        serverHello(sslContext, suites);
+        long misses = CipherSuiteCandidates.getMisses();
+        int clients = 0;
+        for (int i = 0; i < suites.length && clients <= 2 * cacheSize; ++i)
+        {
+            for (int j = i + 1; j < suites.length && clients <= 2 * cacheSize; ++j)
+            {
+                // Each client sends a distinct permutation of the cipher suites.
+                String[] permutation = suites.clone();
+                permutation[i] = suites[j];
+                permutation[j] = suites[i];
+                serverHello(sslContext, permutation);
+                ++clients;
+
+                // A client that comes back keeps finding its candidates.
+                if (clients % 8 == 0)
+                {
+                    long hits = CipherSuiteCandidates.getHits();
+                    serverHello(sslContext, suites);
+                    Assert.assertEquals(hits + 1, CipherSuiteCandidates.getHits());
+                }
+            }
+        }
+        Assert.assertTrue(CipherSuiteCandidates.getMisses() - misses > cacheSize);
+    }
+
+    // The server reads the ClientHello of a client with the given cipher suites, and answers it.
+    private static void serverHello(SSLContext sslContext, String[] clientSuites) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        clientSSLEngine.setEnabledCipherSuites(clientSuites);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+    }
+}
@@ -0,0 +1,66 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ClientHelloTemplates;
+
+public class ClientHelloTemplatesTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testClientHelloTemplateIsByteIdentical() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList("h2", "http/1.1");
+            }
+
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+            }
+        };
+
+        // The first ClientHello adds the extensions one by one, the second is written from the template.
+        long hits = ClientHelloTemplates.getHits();
+        byte[] expected = clientHello(sslContext, clientProvider);
+        byte[] actual = clientHello(sslContext, clientProvider);
+        Assert.assertEquals(hits + 1, ClientHelloTemplates.getHits());
+
+        // Only the client random differs: record header (5), handshake header (4), version (2), random (32).
+        Arrays.fill(expected, 11, 43, (byte)0);
+        Arrays.fill(actual, 11, 43, (byte)0);
+        Assert.assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,90 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.DHKeyPool;
+
+public class DHKeyPoolTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testDHKeyPool() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        int watermark = 2;
+        DHKeyPool.setWatermark(watermark);
+        try
+        {
+            // The first handshake finds the pool empty, and starts filling it.
+            long fallbacks = DHKeyPool.getFallbacks();
+            performDHEHandshake(sslContext);
+            Assert.assertEquals(fallbacks + 1, DHKeyPool.getFallbacks());
+
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (DHKeyPool.getDepth() < watermark && System.nanoTime() < end)
+                Thread.sleep(10);
+            Assert.assertTrue(DHKeyPool.getDepth() >= watermark);
+
+            long taken = DHKeyPool.getTaken();
+            performDHEHandshake(sslContext);
+            Assert.assertEquals(taken + 1, DHKeyPool.getTaken());
+            Assert.assertEquals(fallbacks + 1, DHKeyPool.getFallbacks());
+        }
+        finally
+        {
+            DHKeyPool.setWatermark(0);
+        }
+    }
+
+    private void performDHEHandshake(SSLContext sslContext) throws Exception
+    {
+        String[] cipherSuites = {"TLS_DHE_RSA_WITH_AES_128_CBC_SHA"};
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        clientSSLEngine.setEnabledCipherSuites(cipherSuites);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        serverSSLEngine.setEnabledCipherSuites(cipherSuites);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        clientSSLEngine.beginHandshake();
+        serverSSLEngine.beginHandshake();
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+        unwrap(clientSSLEngine, encrypted, decrypted);
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+        unwrap(clientSSLEngine, encrypted, decrypted);
+
+        Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, clientSSLEngine.getHandshakeStatus());
+        Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, serverSSLEngine.getHandshakeStatus());
+        Assert.assertEquals(cipherSuites[0], clientSSLEngine.getSession().getCipherSuite());
+    }
+}
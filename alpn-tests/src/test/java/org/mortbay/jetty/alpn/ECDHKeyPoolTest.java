@@ -0,0 +1,92 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ECDHKeyPool;
+
+public class ECDHKeyPoolTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testECDHKeyPool() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        int watermark = 4;
+        ECDHKeyPool.setWatermark(watermark);
+        try
+        {
+            // The first handshake finds the pool empty, and starts filling it.
+            long fallbacks = ECDHKeyPool.getFallbacks();
+            performEngineHandshake(sslContext, null, null, false);
+            Assert.assertEquals(fallbacks + 1, ECDHKeyPool.getFallbacks());
+
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (ECDHKeyPool.getDepth() < watermark && System.nanoTime() < end)
+                Thread.sleep(10);
+            Assert.assertTrue(ECDHKeyPool.getDepth() >= watermark);
+
+            long taken = ECDHKeyPool.getTaken();
+            performEngineHandshake(sslContext, null, null, false);
+            Assert.assertEquals(taken + 1, ECDHKeyPool.getTaken());
+            Assert.assertEquals(fallbacks + 1, ECDHKeyPool.getFallbacks());
+        }
+        finally
+        {
+            ECDHKeyPool.setWatermark(0);
+        }
+    }
+
+    @Test
+    public void testDepthExcludesCollectedContexts() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        int watermark = 4;
+        ECDHKeyPool.setWatermark(watermark);
+        try
+        {
+            performEngineHandshake(sslContext, null, null, false);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (ECDHKeyPool.getDepth() < watermark && System.nanoTime() < end)
+                Thread.sleep(10);
+            Assert.assertTrue(ECDHKeyPool.getDepth() >= watermark);
+
+            // The keys pooled for a collected context are not counted;
+            // the pools are still enabled, as disabling them drops the keys.
+            WeakReference<SSLContext> reference = new WeakReference<>(sslContext);
+            sslContext = null;
+            end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while ((reference.get() != null || ECDHKeyPool.getDepth() > 0) && System.nanoTime() < end)
+            {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertNull(reference.get());
+            Assert.assertEquals(0, ECDHKeyPool.getDepth());
+        }
+        finally
+        {
+            ECDHKeyPool.setWatermark(0);
+        }
+    }
+}
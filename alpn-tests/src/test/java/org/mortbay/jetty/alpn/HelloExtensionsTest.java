@@ -0,0 +1,532 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import org.eclipse.jetty.alpn.ALPN;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import sun.security.ssl.AlertStatistics;
+import sun.security.ssl.HelloExtensionHandler;
+import sun.security.ssl.LazyHelloExtensions;
+
+public class HelloExtensionsTest extends AbstractSSLEngineTest
+{
+    private static final int SERVER_NAME_TYPE = 0;
+    private static final int ALPN_TYPE = 16;
+    private static final int RENEGOTIATION_INFO_TYPE = 0xFF01;
+    private static final int UNKNOWN_TYPE = 0xFAFA;
+    private static final int OTHER_UNKNOWN_TYPE = 0xFAFB;
+
+    private boolean lazy;
+
+    @Before
+    public void saveLazyExtensions() throws Exception
+    {
+        lazy = LazyHelloExtensions.isEnabled();
+    }
+
+    @After
+    public void restoreLazyExtensions() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(lazy);
+    }
+
+    @Test
+    public void testMalformedALPNExtensionIsReportedInBothModes() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        // The protocol list claims 3 bytes, but only 2 follow.
+        byte[] clientHello = withExtension(clientHello(sslContext, null), ALPN_TYPE, 0, 3, 2, 'h');
+        assertRejected(sslContext, clientHello, new SelectingServerProvider(), 50);
+    }
+
+    @Test
+    public void testMalformedALPNExtensionIsNotDecodedWithoutProvider() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(true);
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        // Correctly framed, but with an empty protocol name.
+        byte[] clientHello = withExtension(clientHello(sslContext, null), ALPN_TYPE, 0, 1, 0);
+        // Without a server provider the extension is never decoded,
+        // so the malformed protocol name is not reported.
+        Assert.assertTrue(serverHello(sslContext, clientHello, null).length > 0);
+    }
+
+    @Test
+    public void testMalformedExtensionFramingIsReportedInBothModes() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        byte[][] clientHellos = new byte[][]{
+                // The server name list claims 16 bytes, but none follow.
+                withExtension(clientHello(sslContext, null), SERVER_NAME_TYPE, 0, 16),
+                // The renegotiated connection claims 3 bytes, but none follow.
+                withExtension(clientHello(sslContext, null), RENEGOTIATION_INFO_TYPE, 3)
+        };
+        for (byte[] clientHello : clientHellos)
+        {
+            for (boolean enabled : new boolean[]{false, true})
+            {
+                LazyHelloExtensions.setEnabled(enabled);
+                try
+                {
+                    // Without providers: lazy mode must not wait for the extensions to be decoded.
+                    serverHello(sslContext, clientHello, null);
+                    Assert.fail("lazy=" + enabled);
+                }
+                catch (SSLException x)
+                {
+                    // Expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLazyHandshakeIsEquivalentToEager() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        List<String> selected = new ArrayList<>();
+        List<byte[]> serverHellos = new ArrayList<>();
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            SelectingClientProvider clientProvider = new SelectingClientProvider();
+            performEngineHandshake(sslContext, clientProvider, new SelectingServerProvider(), false);
+            selected.add(clientProvider.selected);
+
+            byte[] clientHello = clientHello(sslContext, new SelectingClientProvider());
+            serverHellos.add(serverHelloBody(serverHello(sslContext, clientHello, new SelectingServerProvider())));
+        }
+        Assert.assertEquals("h2", selected.get(0));
+        Assert.assertEquals(selected.get(0), selected.get(1));
+        Assert.assertArrayEquals(serverHellos.get(0), serverHellos.get(1));
+    }
+
+    @Test
+    public void testHandlerReceivesExtensionData() throws Exception
+    {
+        final List<Object> connections = new ArrayList<>();
+        final List<ByteBuffer> datas = new ArrayList<>();
+        HelloExtensionHandler.register(UNKNOWN_TYPE, new HelloExtensionHandler()
+        {
+            @Override
+            public void handle(Object connection, ByteBuffer data)
+            {
+                connections.add(connection);
+                ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data).flip();
+                datas.add(copy);
+            }
+        });
+        try
+        {
+            SSLContext sslContext = SSLSupport.newSSLContext();
+            byte[] clientHello = withExtension(clientHello(sslContext, null), UNKNOWN_TYPE, 1, 2, 3);
+            for (boolean enabled : new boolean[]{false, true})
+            {
+                LazyHelloExtensions.setEnabled(enabled);
+                connections.clear();
+                datas.clear();
+                SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+                serverSSLEngine.setUseClientMode(false);
+                serverHello(serverSSLEngine, clientHello, null);
+                Assert.assertEquals(1, connections.size());
+                Assert.assertSame(serverSSLEngine, connections.get(0));
+                Assert.assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), datas.get(0));
+            }
+        }
+        finally
+        {
+            HelloExtensionHandler.register(UNKNOWN_TYPE, null);
+        }
+    }
+
+    @Test
+    public void testHandlerFailureFailsHandshake() throws Exception
+    {
+        HelloExtensionHandler.register(UNKNOWN_TYPE, new HelloExtensionHandler()
+        {
+            @Override
+            public void handle(Object connection, ByteBuffer data) throws SSLException
+            {
+                throw new SSLException("Rejected");
+            }
+        });
+        try
+        {
+            SSLContext sslContext = SSLSupport.newSSLContext();
+            byte[] clientHello = withExtension(clientHello(sslContext, null), UNKNOWN_TYPE, 1, 2, 3);
+            for (boolean enabled : new boolean[]{false, true})
+            {
+                LazyHelloExtensions.setEnabled(enabled);
+                AlertStatistics.Snapshot before = AlertStatistics.snapshot();
+                try
+                {
+                    serverHello(sslContext, clientHello, null);
+                    Assert.fail();
+                }
+                catch (SSLException x)
+                {
+                    // Expected
+                }
+                AlertStatistics.Snapshot after = AlertStatistics.snapshot();
+                Assert.assertEquals("lazy=" + enabled, before.getSentFatal(40) + 1, after.getSentFatal(40));
+            }
+        }
+        finally
+        {
+            HelloExtensionHandler.register(UNKNOWN_TYPE, null);
+        }
+    }
+
+    @Test
+    public void testHandlerRegisteredAfterSkipIsNotCalled() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(false);
+        final List<ByteBuffer> datas = new ArrayList<>();
+        final HelloExtensionHandler otherHandler = new HelloExtensionHandler()
+        {
+            @Override
+            public void handle(Object connection, ByteBuffer data)
+            {
+                datas.add(data);
+            }
+        };
+        // The first handler registers the handler of the second extension
+        // after the second extension was skipped, so its data is not available.
+        HelloExtensionHandler.register(UNKNOWN_TYPE, new HelloExtensionHandler()
+        {
+            @Override
+            public void handle(Object connection, ByteBuffer data)
+            {
+                HelloExtensionHandler.register(OTHER_UNKNOWN_TYPE, otherHandler);
+            }
+        });
+        try
+        {
+            SSLContext sslContext = SSLSupport.newSSLContext();
+            byte[] clientHello = withExtension(clientHello(sslContext, null), UNKNOWN_TYPE, 1, 2, 3);
+            clientHello = withExtension(clientHello, OTHER_UNKNOWN_TYPE, 4, 5, 6);
+            Assert.assertTrue(serverHello(sslContext, clientHello, null).length > 0);
+            Assert.assertTrue(datas.isEmpty());
+
+            // The next ClientHello retains the data of the second extension.
+            serverHello(sslContext, clientHello, null);
+            Assert.assertEquals(1, datas.size());
+            Assert.assertEquals(ByteBuffer.wrap(new byte[]{4, 5, 6}), datas.get(0));
+        }
+        finally
+        {
+            HelloExtensionHandler.register(UNKNOWN_TYPE, null);
+            HelloExtensionHandler.register(OTHER_UNKNOWN_TYPE, null);
+        }
+    }
+
+    @Test
+    public void testTooManyProtocolsAreRejected() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        byte[] clientHello = clientHello(sslContext, new OfferingClientProvider(protocols(129)));
+        assertRejected(sslContext, clientHello, new SelectingServerProvider(), 50);
+    }
+
+    @Test
+    public void testMaxProtocolsAreAccepted() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        final List<String> offered = new ArrayList<>();
+        ALPN.ServerProvider serverProvider = new SelectingServerProvider()
+        {
+            @Override
+            public String select(List<String> protocols)
+            {
+                offered.addAll(protocols);
+                return super.select(protocols);
+            }
+        };
+        byte[] clientHello = clientHello(sslContext, new OfferingClientProvider(protocols(128)));
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            offered.clear();
+            Assert.assertTrue(serverHello(sslContext, clientHello, serverProvider).length > 0);
+            Assert.assertEquals(protocols(128), offered);
+        }
+    }
+
+    @Test
+    public void testTooManyExtensionsAreRejected() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        byte[] clientHello = clientHello(sslContext, null);
+        int count = 64 - extensionCount(clientHello);
+        byte[] atLimit = withExtensions(clientHello, unknownExtensions(count));
+        Assert.assertEquals(64, extensionCount(atLimit));
+        byte[] overLimit = withExtensions(clientHello, unknownExtensions(count + 1));
+
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            Assert.assertTrue(serverHello(sslContext, atLimit, null).length > 0);
+        }
+        assertRejected(sslContext, overLimit, null, 50);
+    }
+
+    @Test
+    public void testDuplicateExtensionsAreRejected() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        byte[] clientHello = clientHello(sslContext, null);
+
+        byte[] unknown = withExtension(withExtension(clientHello, UNKNOWN_TYPE, 1), UNKNOWN_TYPE, 2);
+        assertRejected(sslContext, unknown, null, 47);
+
+        byte[] alpn = withExtension(clientHello, ALPN_TYPE, 0, 3, 2, 'h', '2');
+        alpn = withExtension(alpn, ALPN_TYPE, 0, 3, 2, 'h', '2');
+        assertRejected(sslContext, alpn, new SelectingServerProvider(), 47);
+    }
+
+    // Asserts that the server rejects the given ClientHello with the given alert, in both decoding modes.
+    private void assertRejected(SSLContext sslContext, byte[] clientHello, ALPN.ServerProvider serverProvider, int alert) throws Exception
+    {
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            AlertStatistics.Snapshot before = AlertStatistics.snapshot();
+            try
+            {
+                serverHello(sslContext, clientHello, serverProvider);
+                Assert.fail();
+            }
+            catch (SSLException x)
+            {
+                // Expected
+            }
+            AlertStatistics.Snapshot after = AlertStatistics.snapshot();
+            Assert.assertEquals("lazy=" + enabled, before.getSentFatal(alert) + 1, after.getSentFatal(alert));
+        }
+    }
+
+    private static List<String> protocols(int count)
+    {
+        List<String> protocols = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+            protocols.add("p" + i);
+        return protocols;
+    }
+
+    // Returns the given number of empty extensions of distinct unsupported types.
+    private static byte[] unknownExtensions(int count)
+    {
+        byte[] extensions = new byte[4 * count];
+        for (int i = 0; i < count; ++i)
+            int16(extensions, 4 * i, 0xFA00 + i);
+        return extensions;
+    }
+
+    private static int extensionCount(byte[] clientHello)
+    {
+        int offset = extensionsOffset(clientHello);
+        if (offset == clientHello.length)
+            return 0;
+        int count = 0;
+        for (offset += 2; offset < clientHello.length; offset += 4 + int16(clientHello, offset + 2))
+            ++count;
+        return count;
+    }
+
+    // Returns the records written by a server with the given provider in reply to the given ClientHello record.
+    private byte[] serverHello(SSLContext sslContext, byte[] clientHello, ALPN.ServerProvider serverProvider) throws Exception
+    {
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+        return serverHello(serverSSLEngine, clientHello, serverProvider);
+    }
+
+    private byte[] serverHello(SSLEngine serverSSLEngine, byte[] clientHello, ALPN.ServerProvider serverProvider) throws Exception
+    {
+        ByteBuffer encrypted = ByteBuffer.allocate(serverSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(serverSSLEngine.getSession().getApplicationBufferSize());
+        if (serverProvider != null)
+            ALPN.put(serverSSLEngine, serverProvider);
+        try
+        {
+            serverSSLEngine.beginHandshake();
+            encrypted.put(clientHello).flip();
+            unwrap(serverSSLEngine, encrypted, decrypted);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            byte[] bytes = new byte[encrypted.remaining()];
+            encrypted.get(bytes);
+            return bytes;
+        }
+        finally
+        {
+            ALPN.remove(serverSSLEngine);
+            serverSSLEngine.closeOutbound();
+        }
+    }
+
+    // Returns the ServerHello body that follows the random and the session id,
+    // that is the cipher suite, the compression method and the extensions.
+    private static byte[] serverHelloBody(byte[] records)
+    {
+        // Record header, handshake header.
+        int length = int24(records, 6);
+        int end = 9 + length;
+        // Version, random.
+        int offset = 9 + 2 + 32;
+        offset += 1 + (records[offset] & 0xFF);
+        return Arrays.copyOfRange(records, offset, end);
+    }
+
+    // Appends an extension to the given ClientHello record, fixing the lengths.
+    private static byte[] withExtension(byte[] clientHello, int type, int... data)
+    {
+        byte[] extension = new byte[4 + data.length];
+        extension[0] = (byte)(type >> 8);
+        extension[1] = (byte)type;
+        extension[2] = (byte)(data.length >> 8);
+        extension[3] = (byte)data.length;
+        for (int i = 0; i < data.length; ++i)
+            extension[4 + i] = (byte)data[i];
+        return withExtensions(clientHello, extension);
+    }
+
+    // Appends the given encoded extensions to the given ClientHello record, fixing the lengths.
+    private static byte[] withExtensions(byte[] clientHello, byte[] extensions)
+    {
+        int offset = extensionsOffset(clientHello);
+        // Add the extensions length if there are no extensions yet.
+        boolean empty = offset == clientHello.length;
+        int added = extensions.length + (empty ? 2 : 0);
+        byte[] result = Arrays.copyOf(clientHello, clientHello.length + added);
+        int16(result, offset, (empty ? 0 : int16(clientHello, offset)) + extensions.length);
+        System.arraycopy(extensions, 0, result, result.length - extensions.length, extensions.length);
+        int16(result, 3, int16(clientHello, 3) + added);
+        int24(result, 6, int24(clientHello, 6) + added);
+        return result;
+    }
+
+    // Returns the offset of the extensions length in the given ClientHello record.
+    private static int extensionsOffset(byte[] clientHello)
+    {
+        // Record header, handshake header, version, random.
+        int offset = 5 + 4 + 2 + 32;
+        // Session id, cipher suites, compression methods.
+        offset += 1 + (clientHello[offset] & 0xFF);
+        offset += 2 + int16(clientHello, offset);
+        offset += 1 + (clientHello[offset] & 0xFF);
+        return offset;
+    }
+
+    private static int int16(byte[] bytes, int offset)
+    {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static void int16(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte)(value >> 8);
+        bytes[offset + 1] = (byte)value;
+    }
+
+    private static int int24(byte[] bytes, int offset)
+    {
+        return ((bytes[offset] & 0xFF) << 16) | int16(bytes, offset + 1);
+    }
+
+    private static void int24(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte)(value >> 16);
+        int16(bytes, offset + 1, value);
+    }
+
+    private static class SelectingClientProvider implements ALPN.ClientProvider
+    {
+        private String selected;
+
+        @Override
+        public List<String> protocols()
+        {
+            return Arrays.asList("h2", "http/1.1");
+        }
+
+        @Override
+        public void unsupported()
+        {
+            Assert.fail();
+        }
+
+        @Override
+        public void selected(String protocol)
+        {
+            selected = protocol;
+        }
+    }
+
+    private static class OfferingClientProvider implements ALPN.ClientProvider
+    {
+        private final List<String> protocols;
+
+        private OfferingClientProvider(List<String> protocols)
+        {
+            this.protocols = protocols;
+        }
+
+        @Override
+        public List<String> protocols()
+        {
+            return protocols;
+        }
+
+        @Override
+        public void unsupported()
+        {
+        }
+
+        @Override
+        public void selected(String protocol)
+        {
+        }
+    }
+
+    private static class SelectingServerProvider implements ALPN.ServerProvider
+    {
+        @Override
+        public void unsupported()
+        {
+        }
+
+        @Override
+        public String select(List<String> protocols)
+        {
+            return protocols.get(0);
+        }
+    }
+}
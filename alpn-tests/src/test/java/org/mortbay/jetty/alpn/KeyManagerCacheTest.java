@@ -0,0 +1,109 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.KeyManagerCache;
+
+public class KeyManagerCacheTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testKeyManagerCache() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        KeyManagerCache.enable(sslContext);
+        try
+        {
+            performEngineHandshake(sslContext, null, null, false);
+
+            long hits = KeyManagerCache.getHits();
+            long misses = KeyManagerCache.getMisses();
+            performEngineHandshake(sslContext, null, null, false);
+            Assert.assertTrue(KeyManagerCache.getHits() > hits);
+            Assert.assertEquals(misses, KeyManagerCache.getMisses());
+
+            // After invalidation, the key manager is asked again.
+            KeyManagerCache.invalidate(sslContext);
+            performEngineHandshake(sslContext, null, null, false);
+            Assert.assertTrue(KeyManagerCache.getMisses() > misses);
+        }
+        finally
+        {
+            KeyManagerCache.disable(sslContext);
+        }
+    }
+
+    @Test
+    public void testClientsCannotFillTheCache() throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        int cacheSize = Integer.getInteger("org.eclipse.jetty.alpn.cacheSize", 64);
+        KeyManagerCache.enable(sslContext);
+        try
+        {
+            serverHello(sslContext, "www.example.com");
+            for (int i = 0; i <= 2 * cacheSize; ++i)
+            {
+                // Each client requests a distinct server name, that the key manager does not know.
+                serverHello(sslContext, "host" + i + ".example.com");
+
+                // A client requesting a real server name keeps finding its choice.
+                if (i % 8 == 0)
+                {
+                    long hits = KeyManagerCache.getHits();
+                    long misses = KeyManagerCache.getMisses();
+                    serverHello(sslContext, "www.example.com");
+                    Assert.assertTrue(KeyManagerCache.getHits() > hits);
+                    Assert.assertEquals(misses, KeyManagerCache.getMisses());
+                }
+            }
+        }
+        finally
+        {
+            KeyManagerCache.disable(sslContext);
+        }
+    }
+
+    // The server reads the ClientHello of a client requesting the given server name, and answers it.
+    private static void serverHello(SSLContext sslContext, String serverName) throws Exception
+    {
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLParameters parameters = clientSSLEngine.getSSLParameters();
+        parameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(serverName)));
+        clientSSLEngine.setSSLParameters(parameters);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+        wrap(clientSSLEngine, decrypted, encrypted);
+        unwrap(serverSSLEngine, encrypted, decrypted);
+        wrap(serverSSLEngine, decrypted, encrypted);
+    }
+}
@@ -19,15 +19,32 @@
 package org.mortbay.jetty.alpn;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
 
 import org.eclipse.jetty.alpn.ALPN;
 import org.junit.Assert;
+import org.junit.Test;
+import sun.security.ssl.ALPNAsyncServerSelector;
 
+import static org.mortbay.jetty.alpn.AbstractSSLEngineTest.unwrap;
+import static org.mortbay.jetty.alpn.AbstractSSLEngineTest.wrap;
+
+// Extends AbstractALPNTest for the tests it shares with SSLSocketALPNTest,
+// and uses the engine helpers of AbstractSSLEngineTest.
 public class SSLEngineALPNTest extends AbstractALPNTest<SSLEngine>
 {
     @Override
@@ -200,47 +217,203 @@ public class SSLEngineALPNTest extends AbstractALPNTest<SSLEngine>
         return sslEngine.getSession();
     }
 
-    private void wrap(SSLEngine sslEngine, ByteBuffer decrypted, ByteBuffer encrypted) throws Exception
+    @Test
+    public void testAsyncServerSelection() throws Exception
     {
-        encrypted.clear();
-        ByteBuffer tmp = ByteBuffer.allocate(encrypted.capacity());
-        while (true)
-        {
-            encrypted.clear();
-            SSLEngineResult result = sslEngine.wrap(decrypted, encrypted);
-            SSLEngineResult.Status status = result.getStatus();
-            if (status != SSLEngineResult.Status.OK && status != SSLEngineResult.Status.CLOSED)
-                throw new AssertionError(status.toString());
-            encrypted.flip();
-            tmp.put(encrypted);
-            if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+        final String protocolName = "test";
+        final AtomicReference<String> selected = new AtomicReference<>();
+        ALPN.ClientProvider clientProvider = new ALPN.ClientProvider()
+        {
+            @Override
+            public List<String> protocols()
+            {
+                return Arrays.asList(protocolName);
+            }
+
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void selected(String protocol)
+            {
+                selected.set(protocol);
+            }
+        };
+        final Thread ioThread = Thread.currentThread();
+        final AtomicReference<Thread> selectThread = new AtomicReference<>();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ALPN.ServerProvider serverProvider = new ALPNAsyncServerSelector()
+        {
+            @Override
+            public void unsupported()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public CompletionStage<String> selectAsync(final List<String> protocols)
             {
-                tmp.flip();
-                encrypted.clear();
-                encrypted.put(tmp).flip();
-                return;
+                selectThread.set(Thread.currentThread());
+                final CompletableFuture<String> result = new CompletableFuture<>();
+                // Simulate a slow routing lookup.
+                scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        result.complete(protocols.get(0));
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+                return result;
             }
+        };
+
+        ExecutorService serverTasks = Executors.newSingleThreadExecutor();
+        try
+        {
+            performAsyncTLSHandshake(clientProvider, serverProvider, serverTasks);
         }
+        finally
+        {
+            serverTasks.shutdownNow();
+            scheduler.shutdownNow();
+        }
+        Assert.assertEquals(protocolName, selected.get());
+        // The selection ran, and waited, in a delegated task, not in the I/O thread.
+        Assert.assertNotNull(selectThread.get());
+        Assert.assertNotSame(ioThread, selectThread.get());
     }
 
-    private void unwrap(SSLEngine sslEngine, ByteBuffer encrypted, ByteBuffer decrypted) throws Exception
+    @Test
+    public void testAsyncServerSelectionFailure() throws Exception
     {
-        decrypted.clear();
-        while (true)
-        {
-            decrypted.clear();
-            SSLEngineResult result = sslEngine.unwrap(encrypted, decrypted);
-            SSLEngineResult.Status status = result.getStatus();
-            if (status != SSLEngineResult.Status.OK && status != SSLEngineResult.Status.CLOSED)
-                throw new AssertionError(status.toString());
-            SSLEngineResult.HandshakeStatus handshakeStatus = result.getHandshakeStatus();
-            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK)
+        ALPN.ServerProvider serverProvider = new ALPNAsyncServerSelector()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public CompletionStage<String> selectAsync(List<String> protocols)
+            {
+                CompletableFuture<String> result = new CompletableFuture<>();
+                result.completeExceptionally(new IllegalStateException("No route"));
+                return result;
+            }
+        };
+
+        ExecutorService serverTasks = Executors.newSingleThreadExecutor();
+        try
+        {
+            performAsyncTLSHandshake(new UnselectedClientProvider(), serverProvider, serverTasks);
+            Assert.fail();
+        }
+        catch (SSLException x)
+        {
+            // Expected
+        }
+        finally
+        {
+            serverTasks.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncServerSelectionTimeout() throws Exception
+    {
+        // Never completed, so the handshake times out.
+        final CompletableFuture<String> selection = new CompletableFuture<>();
+        ALPN.ServerProvider serverProvider = new ALPNAsyncServerSelector()
+        {
+            @Override
+            public void unsupported()
+            {
+            }
+
+            @Override
+            public CompletionStage<String> selectAsync(List<String> protocols)
             {
-                sslEngine.getDelegatedTask().run();
-                handshakeStatus = sslEngine.getHandshakeStatus();
+                return selection;
             }
-            if (handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
-                return;
+        };
+
+        ExecutorService serverTasks = Executors.newSingleThreadExecutor();
+        try
+        {
+            performAsyncTLSHandshake(new UnselectedClientProvider(), serverProvider, serverTasks);
+            Assert.fail();
+        }
+        catch (SSLException x)
+        {
+            // Expected
+        }
+        finally
+        {
+            serverTasks.shutdownNow();
+        }
+        Assert.assertTrue(selection.isCancelled());
+    }
+
+    // Runs the server delegated tasks on the given executor, like a non-blocking server.
+    private void performAsyncTLSHandshake(ALPN.ClientProvider clientProvider, ALPN.ServerProvider serverProvider, ExecutorService serverTasks) throws Exception
+    {
+        SSLContext sslContext = SSLSupport.newSSLContext();
+        SSLEngine clientSSLEngine = sslContext.createSSLEngine();
+        clientSSLEngine.setUseClientMode(true);
+        SSLEngine serverSSLEngine = sslContext.createSSLEngine();
+        serverSSLEngine.setUseClientMode(false);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(clientSSLEngine.getSession().getApplicationBufferSize());
+
+        ALPN.put(clientSSLEngine, clientProvider);
+        ALPN.put(serverSSLEngine, serverProvider);
+        try
+        {
+            clientSSLEngine.beginHandshake();
+            serverSSLEngine.beginHandshake();
+
+            wrap(clientSSLEngine, decrypted, encrypted);
+            unwrap(serverSSLEngine, encrypted, decrypted, serverTasks);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            unwrap(clientSSLEngine, encrypted, decrypted);
+            wrap(clientSSLEngine, decrypted, encrypted);
+            unwrap(serverSSLEngine, encrypted, decrypted, serverTasks);
+            wrap(serverSSLEngine, decrypted, encrypted);
+            unwrap(clientSSLEngine, encrypted, decrypted);
+
+            Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, clientSSLEngine.getHandshakeStatus());
+            Assert.assertSame(SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, serverSSLEngine.getHandshakeStatus());
+        }
+        finally
+        {
+            ALPN.remove(clientSSLEngine);
+            ALPN.remove(serverSSLEngine);
+        }
+    }
+
+    // A client provider for the handshakes that fail in the server selection.
+    private static class UnselectedClientProvider implements ALPN.ClientProvider
+    {
+        @Override
+        public List<String> protocols()
+        {
+            return Arrays.asList("test");
+        }
+
+        @Override
+        public void unsupported()
+        {
+        }
+
+        @Override
+        public void selected(String protocol)
+        {
+            Assert.fail();
         }
     }
 }
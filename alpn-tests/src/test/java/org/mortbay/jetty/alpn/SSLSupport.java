@@ -36,10 +36,18 @@ public class SSLSupport
     }
 
     public static SSLContext newSSLContext() throws Exception
+    {
+        return newSSLContext(newKeyManagers());
+    }
+
+    public static KeyManager[] newKeyManagers() throws Exception
     {
         KeyStore keyStore = getKeyStore("keystore", "storepwd");
-        KeyManager[] keyManagers = getKeyManagers(keyStore, "keypwd");
+        return getKeyManagers(keyStore, "keypwd");
+    }
 
+    public static SSLContext newSSLContext(KeyManager[] keyManagers) throws Exception
+    {
         KeyStore trustStore = getKeyStore("truststore", "storepwd");
         TrustManager[] trustManagers = getTrustManagers(trustStore);
 
@@ -0,0 +1,115 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ServerPrivateKeyTest extends AbstractSSLEngineTest
+{
+    @Test
+    public void testServerPrivateKeyOperationsRunInDelegatedTasks() throws Exception
+    {
+        final X509ExtendedKeyManager keyManager = (X509ExtendedKeyManager)SSLSupport.newKeyManagers()[0];
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        X509ExtendedKeyManager recordingKeyManager = new X509ExtendedKeyManager()
+        {
+            @Override
+            public String[] getClientAliases(String keyType, Principal[] issuers)
+            {
+                return keyManager.getClientAliases(keyType, issuers);
+            }
+
+            @Override
+            public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket)
+            {
+                return keyManager.chooseClientAlias(keyType, issuers, socket);
+            }
+
+            @Override
+            public String[] getServerAliases(String keyType, Principal[] issuers)
+            {
+                return keyManager.getServerAliases(keyType, issuers);
+            }
+
+            @Override
+            public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket)
+            {
+                return keyManager.chooseServerAlias(keyType, issuers, socket);
+            }
+
+            @Override
+            public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine)
+            {
+                return keyManager.chooseEngineServerAlias(keyType, issuers, engine);
+            }
+
+            @Override
+            public X509Certificate[] getCertificateChain(String alias)
+            {
+                return keyManager.getCertificateChain(alias);
+            }
+
+            @Override
+            public PrivateKey getPrivateKey(String alias)
+            {
+                // The private key is used by the same task, to sign the ServerKeyExchange.
+                threads.add(Thread.currentThread().getName());
+                return keyManager.getPrivateKey(alias);
+            }
+        };
+        SSLContext sslContext = SSLSupport.newSSLContext(new KeyManager[]{recordingKeyManager});
+
+        final String cryptoThread = "crypto";
+        ExecutorService crypto = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                return new Thread(task, cryptoThread);
+            }
+        });
+        try
+        {
+            performEngineHandshake(sslContext, null, null, false, crypto);
+        }
+        finally
+        {
+            crypto.shutdownNow();
+        }
+
+        Assert.assertFalse(threads.isEmpty());
+        for (String thread : threads)
+            Assert.assertEquals(cryptoThread, thread);
+    }
+}
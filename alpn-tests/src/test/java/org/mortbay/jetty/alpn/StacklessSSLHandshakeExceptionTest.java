@@ -0,0 +1,80 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.mortbay.jetty.alpn;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import sun.security.ssl.StacklessSSLHandshakeException;
+
+public class StacklessSSLHandshakeExceptionTest extends AbstractSSLEngineTest
+{
+    private boolean enabled;
+
+    @Before
+    public void saveStackless() throws Exception
+    {
+        enabled = StacklessSSLHandshakeException.isEnabled();
+    }
+
+    @After
+    public void restoreStackless() throws Exception
+    {
+        StacklessSSLHandshakeException.setEnabled(enabled);
+    }
+
+    @Test
+    public void testStacklessHandshakeFailure() throws Exception
+    {
+        StacklessSSLHandshakeException.setEnabled(true);
+        SSLException failure = performFailedEngineHandshake(SSLSupport.newSSLContext());
+
+        StacklessSSLHandshakeException alert = stackless(failure);
+        Assert.assertNotNull(alert);
+        Assert.assertEquals(40, alert.getAlert());
+        Assert.assertEquals("handshake_failure", alert.getAlertName());
+        Assert.assertTrue(alert.getMessage(), alert.getMessage().contains("no cipher suites in common"));
+        Assert.assertEquals(0, alert.getStackTrace().length);
+    }
+
+    @Test
+    public void testFullHandshakeFailure() throws Exception
+    {
+        StacklessSSLHandshakeException.setEnabled(false);
+        SSLException failure = performFailedEngineHandshake(SSLSupport.newSSLContext());
+
+        Assert.assertNull(stackless(failure));
+        for (Throwable x = failure; x != null; x = x.getCause())
+            Assert.assertTrue(x.toString(), x.getStackTrace().length > 0);
+    }
+
+    private static StacklessSSLHandshakeException stackless(Throwable failure)
+    {
+        for (Throwable x = failure; x != null; x = x.getCause())
+        {
+            if (x instanceof StacklessSSLHandshakeException)
+                return (StacklessSSLHandshakeException)x;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package sun.security.ssl;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import javax.crypto.spec.DHParameterSpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DHKeyPoolTest
+{
+    // The 768 bits safe prime of the first Oakley group, RFC 2409.
+    private static final BigInteger P = new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1" +
+            "29024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
+            "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245" +
+            "E485B576625E7EC6F44C42E9A63A3620FFFFFFFFFFFFFFFF", 16);
+    private static final BigInteger G = BigInteger.valueOf(2);
+
+    @Test
+    public void testValidGroupIsLoaded() throws Exception
+    {
+        File file = parameters("# Oakley group 1", "", group(P, G));
+        DHKeyPool.loadParameters(file);
+
+        DHParameterSpec group = DHKeyPool.group(768);
+        Assert.assertEquals(P, group.getP());
+        Assert.assertEquals(G, group.getG());
+
+        // The handshakes generate their key pairs in the loaded group.
+        SSLContextImpl context = newContext();
+        DHCrypt dh1 = DHKeyPool.take(context, 768);
+        DHCrypt dh2 = DHKeyPool.take(context, 768);
+        Assert.assertEquals(P, dh1.getModulus());
+        Assert.assertEquals(G, dh1.getBase());
+        Assert.assertEquals(P, dh2.getModulus());
+        Assert.assertNotEquals(dh1.getPublicKey(), dh2.getPublicKey());
+    }
+
+    @Test
+    public void testComputedGroupIsCachedPerSize() throws Exception
+    {
+        SSLContextImpl context = newContext();
+        DHCrypt dh1 = DHKeyPool.take(context, 1024);
+        DHParameterSpec group = DHKeyPool.group(1024);
+        Assert.assertNotNull(group);
+        Assert.assertEquals(group.getP(), dh1.getModulus());
+        Assert.assertEquals(1024, group.getP().bitLength());
+
+        DHCrypt dh2 = DHKeyPool.take(context, 1024);
+        Assert.assertSame(group, DHKeyPool.group(1024));
+        Assert.assertEquals(group.getP(), dh2.getModulus());
+        Assert.assertEquals(group.getG(), dh2.getBase());
+        Assert.assertNotEquals(dh1.getPublicKey(), dh2.getPublicKey());
+    }
+
+    @Test
+    public void testSafePrimeIsRequired() throws Exception
+    {
+        // 23 = 2 * 11 + 1 is a safe prime.
+        Assert.assertEquals(BigInteger.valueOf(23), DHKeyPool.parse("{17, 2}").getP());
+        // 13 is prime, but (13 - 1) / 2 = 6 is not.
+        assertInvalid("{d, 2}");
+        // 15 is not prime.
+        assertInvalid("{f, 2}");
+    }
+
+    @Test
+    public void testGeneratorIsChecked() throws Exception
+    {
+        // Between 2 and p - 2.
+        Assert.assertEquals(BigInteger.valueOf(2), DHKeyPool.parse("{17, 2}").getG());
+        Assert.assertEquals(BigInteger.valueOf(21), DHKeyPool.parse("{17, 15}").getG());
+        assertInvalid("{17, 1}");
+        assertInvalid("{17, 16}");
+        assertInvalid("{17, 0}");
+    }
+
+    @Test
+    public void testMalformedLinesAreRejected() throws Exception
+    {
+        assertInvalid("17, 2");
+        assertInvalid("{17}");
+        assertInvalid("{17, 2, 3}");
+        assertInvalid("{zz, 2}");
+        assertInvalid("{, 2}");
+    }
+
+    @Test
+    public void testLoadIsAtomic() throws Exception
+    {
+        // A valid group of 5 bits, then an invalid group.
+        File file = parameters(group(BigInteger.valueOf(23), G), "{d, 2}");
+        try
+        {
+            DHKeyPool.loadParameters(file);
+            Assert.fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+        Assert.assertNull(DHKeyPool.group(5));
+    }
+
+    @Test
+    public void testLenientReadSkipsInvalidGroups() throws Exception
+    {
+        File file = parameters("{d, 2}", group(P, G), "{17, 1}", "garbage");
+        long skipped = DHKeyPool.getSkipped();
+        Map<Integer, DHParameterSpec> groups = DHKeyPool.read(file, false);
+        Assert.assertEquals(skipped + 3, DHKeyPool.getSkipped());
+        Assert.assertEquals(1, groups.size());
+        Assert.assertEquals(P, groups.get(768).getP());
+    }
+
+    private static void assertInvalid(String line)
+    {
+        try
+        {
+            DHKeyPool.parse(line);
+            Assert.fail(line);
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+    }
+
+    private static String group(BigInteger p, BigInteger g)
+    {
+        return "{" + p.toString(16) + ", " + g.toString(16) + "}";
+    }
+
+    private static File parameters(String... lines) throws IOException
+    {
+        File file = File.createTempFile("dh", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.US_ASCII);
+        return file;
+    }
+
+    private static SSLContextImpl newContext() throws Exception
+    {
+        SSLContextImpl context = new SSLContextImpl.TLS12Context();
+        context.engineInit(null, null, null);
+        return context;
+    }
+}
@@ -0,0 +1,146 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package sun.security.ssl;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EphemeralKeyPoolTest
+{
+    @Test
+    public void testLoweringTheWatermarkDropsPooledKeys() throws Exception
+    {
+        EphemeralKeyPool<Object> pool = new KeyPool(4);
+        SSLContextImpl context = newContext();
+        pool.take(context, 1);
+        awaitDepth(pool, 4);
+
+        pool.setWatermark(2);
+        Assert.assertEquals(2, pool.getDepth());
+
+        // Disabling the pools drops all their keys.
+        pool.setWatermark(0);
+        Assert.assertEquals(0, pool.getDepth());
+        Assert.assertNotNull(pool.take(context, 1));
+        Assert.assertEquals(0, pool.getDepth());
+    }
+
+    @Test
+    public void testFailedRefillsAreCounted() throws Exception
+    {
+        EphemeralKeyPool<Object> pool = new KeyPool(4)
+        {
+            @Override
+            Object generate(int id, SecureRandom random)
+            {
+                // Only the background thread fails.
+                if (Thread.currentThread().getName().equals("alpn-ephemeral-key-pool"))
+                    throw new IllegalStateException();
+                return super.generate(id, random);
+            }
+        };
+        SSLContextImpl context = newContext();
+        Assert.assertNotNull(pool.take(context, 1));
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getFailures() == 0 && System.nanoTime() < end)
+            Thread.sleep(10);
+        Assert.assertEquals(1, pool.getFailures());
+        Assert.assertEquals(0, pool.getDepth());
+
+        // The next take retries the refill.
+        Assert.assertNotNull(pool.take(context, 1));
+        end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getFailures() == 1 && System.nanoTime() < end)
+            Thread.sleep(10);
+        Assert.assertEquals(2, pool.getFailures());
+    }
+
+    @Test
+    public void testPoolIsRefilledAfterConcurrentTakes() throws Exception
+    {
+        final int watermark = 8;
+        final EphemeralKeyPool<Object> pool = new KeyPool(watermark);
+        final SSLContextImpl context = newContext();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; ++i)
+            {
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        for (int j = 0; j < 10000; ++j)
+                            pool.take(context, 1);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // Takes that raced with the end of a refill must not leave the pool short.
+        awaitDepth(pool, watermark);
+    }
+
+    private static void awaitDepth(EphemeralKeyPool<?> pool, int depth) throws Exception
+    {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getDepth() != depth && System.nanoTime() < end)
+            Thread.sleep(10);
+        Assert.assertEquals(depth, pool.getDepth());
+    }
+
+    private static SSLContextImpl newContext() throws Exception
+    {
+        SSLContextImpl context = new SSLContextImpl.TLS12Context();
+        context.engineInit(null, null, null);
+        return context;
+    }
+
+    private static class KeyPool extends EphemeralKeyPool<Object>
+    {
+        private KeyPool(int watermark)
+        {
+            super(watermark);
+        }
+
+        @Override
+        Object generate(int id, SecureRandom random)
+        {
+            return new Object();
+        }
+    }
+}
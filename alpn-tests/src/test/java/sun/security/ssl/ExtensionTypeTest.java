@@ -0,0 +1,115 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package sun.security.ssl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtensionTypeTest
+{
+    @Test
+    public void testKnownTypesAreFoundById() throws Exception
+    {
+        for (ExtensionType type : ExtensionType.knownExtensions)
+            Assert.assertSame(type, ExtensionType.get(type.id));
+        Assert.assertSame(ExtensionType.EXT_ALPN, ExtensionType.get(16));
+    }
+
+    @Test
+    public void testUnknownTypesAreInterned() throws Exception
+    {
+        ExtensionType type = ExtensionType.get(0xFAFA);
+        Assert.assertEquals(0xFAFA, type.id);
+        Assert.assertEquals("type_" + 0xFAFA, type.name);
+        Assert.assertEquals(-1, type.index);
+        Assert.assertSame(type, ExtensionType.get(0xFAFA));
+        Assert.assertFalse(ExtensionType.knownExtensions.contains(type));
+    }
+
+    @Test
+    public void testUnknownTypesAreInternedConcurrently() throws Exception
+    {
+        // An id in a page that no other test uses, so that
+        // the threads also race to allocate the page.
+        final int id = 0xAB12;
+        int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<ExtensionType>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; ++i)
+            {
+                futures.add(executor.submit(new Callable<ExtensionType>()
+                {
+                    @Override
+                    public ExtensionType call() throws Exception
+                    {
+                        barrier.await();
+                        return ExtensionType.get(id);
+                    }
+                }));
+            }
+            ExtensionType type = ExtensionType.get(id);
+            for (Future<ExtensionType> future : futures)
+                Assert.assertSame(type, future.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOutOfRangeIdsAreNotInterned() throws Exception
+    {
+        ExtensionType type = ExtensionType.get(0x10000);
+        Assert.assertEquals(0x10000, type.id);
+        Assert.assertNotSame(type, ExtensionType.get(0x10000));
+        Assert.assertEquals(ExtensionType.UNKNOWN_MASK, ExtensionType.mask(type));
+    }
+
+    @Test
+    public void testKnownTypesHaveDistinctMasks() throws Exception
+    {
+        List<ExtensionType> known = ExtensionType.knownExtensions;
+        // The low 63 bits are for the known types, the last one for the unknown types.
+        Assert.assertTrue(known.size() < 64);
+        long masks = 0;
+        for (int i = 0; i < known.size(); ++i)
+        {
+            ExtensionType type = known.get(i);
+            Assert.assertEquals(i, type.index);
+            long mask = ExtensionType.mask(type);
+            Assert.assertEquals(1, Long.bitCount(mask));
+            Assert.assertNotEquals(ExtensionType.UNKNOWN_MASK, mask);
+            Assert.assertEquals(0, masks & mask);
+            masks |= mask;
+        }
+        Assert.assertEquals(ExtensionType.UNKNOWN_MASK, ExtensionType.mask(ExtensionType.get(0xFAFA)));
+    }
+}
@@ -0,0 +1,358 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package sun.security.ssl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.SSLException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HelloExtensionsTest
+{
+    private static final int UNKNOWN = 0xFAFA;
+
+    private boolean lazy;
+
+    @Before
+    public void saveMode() throws Exception
+    {
+        lazy = LazyHelloExtensions.isEnabled();
+    }
+
+    @After
+    public void restoreMode() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(lazy);
+    }
+
+    @Test
+    public void testLazyGetDecodesOnlyTheRequestedExtension() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(true);
+        HelloExtensions extensions = parse(serverName(), emptyProtocolALPN(), extension(UNKNOWN, 1, 2, 3));
+
+        HelloExtension serverName = extensions.get(ExtensionType.EXT_SERVER_NAME);
+        Assert.assertSame(serverName, extensions.get(ExtensionType.EXT_SERVER_NAME));
+        Assert.assertNull(extensions.get(ExtensionType.EXT_ELLIPTIC_CURVES));
+        Assert.assertEquals(UNKNOWN, extensions.get(ExtensionType.get(UNKNOWN)).type.id);
+        Assert.assertNull(extensions.get(ExtensionType.get(UNKNOWN + 1)));
+
+        // The data of the malformed extension is reported when it is first decoded.
+        try
+        {
+            extensions.get(ExtensionType.EXT_ALPN);
+            Assert.fail();
+        }
+        catch (SSLAlertException x)
+        {
+            Assert.assertEquals(Alerts.alert_decode_error, x.alert);
+        }
+        try
+        {
+            extensions.list();
+            Assert.fail();
+        }
+        catch (SSLAlertException x)
+        {
+            Assert.assertEquals(Alerts.alert_decode_error, x.alert);
+        }
+    }
+
+    @Test
+    public void testEagerParseReportsMalformedExtensions() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(false);
+        assertAlert(Alerts.alert_decode_error, block(serverName(), emptyProtocolALPN()));
+    }
+
+    @Test
+    public void testFramingErrorsAreReportedByParseInBothModes() throws Exception
+    {
+        List<byte[]> malformed = Arrays.asList(
+                malformedServerName(),
+                // A server name list of 1 byte.
+                extension(ExtensionType.EXT_SERVER_NAME.id, 5),
+                // 4 bytes of signature algorithms declared, 2 present.
+                extension(ExtensionType.EXT_SIGNATURE_ALGORITHMS.id, 0, 4, 4, 1),
+                // 4 bytes of curves declared, 2 present.
+                extension(ExtensionType.EXT_ELLIPTIC_CURVES.id, 0, 4, 0, 23),
+                // 2 point formats declared, 1 present.
+                extension(ExtensionType.EXT_EC_POINT_FORMATS.id, 2, 0),
+                // 3 bytes of renegotiated connection declared, none present.
+                extension(ExtensionType.EXT_RENEGOTIATION_INFO.id, 3),
+                // Extended master secret has no data.
+                extension(ExtensionType.EXT_EXTENDED_MASTER_SECRET.id, 0));
+        for (byte[] extension : malformed)
+        {
+            // Followed by another extension, that a decoder reading
+            // past the extension data would read.
+            byte[] block = block(extension, extension(UNKNOWN, 1, 2, 3));
+            for (boolean enabled : new boolean[]{false, true})
+            {
+                LazyHelloExtensions.setEnabled(enabled);
+                try
+                {
+                    parse(block);
+                    Assert.fail("lazy=" + enabled + " " + Arrays.toString(extension));
+                }
+                catch (SSLException x)
+                {
+                    // Expected
+                }
+            }
+        }
+
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            assertAlert(Alerts.alert_decode_error, block(extension(ExtensionType.EXT_ALPN.id, 0), extension(UNKNOWN)));
+            assertAlert(Alerts.alert_decode_error, block(extension(ExtensionType.EXT_ALPN.id, 0, 5, 2, 'h', '2'), extension(UNKNOWN)));
+        }
+    }
+
+    @Test
+    public void testReceivedExtensionsCannotBeAddedToInLazyMode() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(true);
+        HelloExtensions extensions = parse(alpn());
+        try
+        {
+            extensions.add(RawExtension.view(ExtensionType.get(UNKNOWN), new byte[0], 0, 0));
+            Assert.fail();
+        }
+        catch (IllegalStateException x)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testLazyListIsEquivalentToEager() throws Exception
+    {
+        List<List<Integer>> types = new ArrayList<>();
+        List<Long> presences = new ArrayList<>();
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            HelloExtensions extensions = parse(alpn(), extension(UNKNOWN, 1, 2, 3), extension(ExtensionType.EXT_EXTENDED_MASTER_SECRET.id));
+            presences.add(extensions.presence());
+
+            ALPNExtension alpn = (ALPNExtension)extensions.get(ExtensionType.EXT_ALPN);
+            List<Integer> ids = new ArrayList<>();
+            for (HelloExtension extension : extensions.list())
+                ids.add(extension.type.id);
+            types.add(ids);
+            // Listing decodes the extensions that were not decoded yet, and keeps the others.
+            Assert.assertSame(alpn, extensions.list().get(0));
+            Assert.assertSame(alpn, extensions.get(ExtensionType.EXT_ALPN));
+        }
+        Assert.assertEquals(Arrays.asList(ExtensionType.EXT_ALPN.id, UNKNOWN, ExtensionType.EXT_EXTENDED_MASTER_SECRET.id), types.get(0));
+        Assert.assertEquals(types.get(0), types.get(1));
+        Assert.assertEquals(presences.get(0), presences.get(1));
+    }
+
+    @Test
+    public void testFramingErrorsAreReportedByParse() throws Exception
+    {
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            // The extension claims 4 bytes of data, but only 3 follow.
+            byte[] truncated = block(new byte[]{(byte)0xFA, (byte)0xFA, 0, 4, 1, 2, 3});
+            try
+            {
+                parse(truncated);
+                Assert.fail();
+            }
+            catch (SSLException x)
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testUnsupportedExtensionsAreSkippedWithoutHandler() throws Exception
+    {
+        LazyHelloExtensions.setEnabled(false);
+        RawExtension extension = (RawExtension)parse(extension(UNKNOWN, 1, 2, 3)).get(ExtensionType.get(UNKNOWN));
+        Assert.assertEquals(4 + 3, extension.length());
+        // The data was skipped, not copied.
+        Assert.assertNull(extension.data());
+    }
+
+    @Test
+    public void testUnsupportedExtensionsAreRetainedWithHandler() throws Exception
+    {
+        HelloExtensionHandler.register(UNKNOWN, new HelloExtensionHandler()
+        {
+            @Override
+            public void handle(Object connection, ByteBuffer data)
+            {
+            }
+        });
+        try
+        {
+            for (boolean enabled : new boolean[]{false, true})
+            {
+                LazyHelloExtensions.setEnabled(enabled);
+                RawExtension extension = (RawExtension)parse(alpn(), extension(UNKNOWN, 1, 2, 3)).get(ExtensionType.get(UNKNOWN));
+                ByteBuffer data = extension.data();
+                Assert.assertTrue(data.isReadOnly());
+                Assert.assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), data);
+            }
+        }
+        finally
+        {
+            HelloExtensionHandler.register(UNKNOWN, null);
+        }
+    }
+
+    @Test
+    public void testHandlersCannotBeRegisteredForSupportedTypes() throws Exception
+    {
+        try
+        {
+            HelloExtensionHandler.register(ExtensionType.EXT_ALPN.id, null);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Expected
+        }
+        try
+        {
+            HelloExtensionHandler.register(0x10000, null);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testExtensionCountIsBounded() throws Exception
+    {
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            Assert.assertEquals(64, parse(unknownExtensions(64)).list().size());
+            assertAlert(Alerts.alert_decode_error, block(unknownExtensions(65)));
+        }
+    }
+
+    @Test
+    public void testDuplicateExtensionsAreRejected() throws Exception
+    {
+        for (boolean enabled : new boolean[]{false, true})
+        {
+            LazyHelloExtensions.setEnabled(enabled);
+            assertAlert(Alerts.alert_illegal_parameter, block(alpn(), extension(UNKNOWN), alpn()));
+            assertAlert(Alerts.alert_illegal_parameter, block(extension(UNKNOWN, 1), alpn(), extension(UNKNOWN, 2)));
+        }
+    }
+
+    private static void assertAlert(byte alert, byte[] block) throws Exception
+    {
+        try
+        {
+            parse(block);
+            Assert.fail();
+        }
+        catch (SSLAlertException x)
+        {
+            Assert.assertEquals(alert, x.alert);
+        }
+    }
+
+    // Returns the given number of empty extensions of distinct unsupported types.
+    private static byte[][] unknownExtensions(int count)
+    {
+        byte[][] extensions = new byte[count][];
+        for (int i = 0; i < count; ++i)
+            extensions[i] = extension(0xFA00 + i);
+        return extensions;
+    }
+
+    private static HelloExtensions parse(byte[]... extensions) throws Exception
+    {
+        return parse(block(extensions));
+    }
+
+    private static HelloExtensions parse(byte[] block) throws Exception
+    {
+        return new HelloExtensions(new HelloExtensions.ExtensionInStream(block, 0, block.length));
+    }
+
+    private static byte[] block(byte[]... extensions)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int length = 0;
+        for (byte[] extension : extensions)
+            length += extension.length;
+        output.write(length >> 8);
+        output.write(length);
+        for (byte[] extension : extensions)
+            output.write(extension, 0, extension.length);
+        return output.toByteArray();
+    }
+
+    private static byte[] extension(int type, int... data)
+    {
+        byte[] result = new byte[4 + data.length];
+        result[0] = (byte)(type >> 8);
+        result[1] = (byte)type;
+        result[2] = (byte)(data.length >> 8);
+        result[3] = (byte)data.length;
+        for (int i = 0; i < data.length; ++i)
+            result[4 + i] = (byte)data[i];
+        return result;
+    }
+
+    private static byte[] alpn()
+    {
+        return extension(ExtensionType.EXT_ALPN.id, 0, 12, 2, 'h', '2', 8, 'h', 't', 't', 'p', '/', '1', '.', '1');
+    }
+
+    // The host name "a.b".
+    private static byte[] serverName()
+    {
+        return extension(ExtensionType.EXT_SERVER_NAME.id, 0, 6, 0, 0, 3, 'a', '.', 'b');
+    }
+
+    // Correctly framed, but with an empty protocol name.
+    private static byte[] emptyProtocolALPN()
+    {
+        return extension(ExtensionType.EXT_ALPN.id, 0, 1, 0);
+    }
+
+    // The server name list length does not match the extension length.
+    private static byte[] malformedServerName()
+    {
+        return extension(ExtensionType.EXT_SERVER_NAME.id, 0, 16);
+    }
+}